@@ -0,0 +1,100 @@
+package com.example.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Launches the chat over a long history and reports how long it takes to draw the first frame
+ * and to start listening for connections. Needs Bluetooth switched on. The app's own history is
+ * put back afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmarkTest {
+
+    private static final String TAG = "StartupBenchmark";
+    private static final int RUNS = 10;
+    private static final int HISTORY_SIZE = 20000;
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final String[] FILES = {"history.log", "recent.snap"};
+
+    private File filesDir;
+
+    @Before
+    public void setUp() throws IOException {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        assumeTrue("Bluetooth is off", adapter != null && adapter.isEnabled());
+
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        filesDir = context.getFilesDir();
+        for (String name : FILES) {
+            new File(filesDir, name).renameTo(new File(filesDir, name + ".bak"));
+        }
+        MessageHistory history = new MessageHistory(filesDir);
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            history.add(ChatProtocol.newMessageId(), i % 2 == 0 ? "Me" : "Peer", ("Message " + i).getBytes());
+        }
+        RecentSnapshot.write(filesDir, history.latest(RecentSnapshot.SIZE));
+    }
+
+    @After
+    public void tearDown() {
+        if (filesDir == null) {
+            return;
+        }
+        for (String name : FILES) {
+            File file = new File(filesDir, name);
+            file.delete();
+            new File(filesDir, name + ".bak").renameTo(file);
+        }
+    }
+
+    @Test
+    public void timeToFirstFrameAndListening() throws InterruptedException {
+        long[] firstFrame = new long[RUNS];
+        long[] listening = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            try (ActivityScenario<BluetoothChat> scenario = ActivityScenario.launch(BluetoothChat.class)) {
+                firstFrame[i] = StartupTrace.await(StartupTrace.FIRST_FRAME, TIMEOUT_MILLIS);
+                listening[i] = StartupTrace.await(StartupTrace.LISTENING, TIMEOUT_MILLIS);
+                assertTrue("No first frame", firstFrame[i] >= 0);
+                assertTrue("Never started listening", listening[i] >= 0);
+                scenario.onActivity(new ActivityScenario.ActivityAction<BluetoothChat>() {
+                    @Override
+                    public void perform(BluetoothChat activity) {
+                        RecyclerView messages = activity.findViewById(R.id.my_recycler_view);
+                        assertTrue("Snapshot not shown", messages.getAdapter().getItemCount() >= RecentSnapshot.SIZE);
+                    }
+                });
+            }
+            Log.i(TAG, String.format("Run %d: first frame %d ms, listening %d ms",
+                    i, firstFrame[i] / 1000000, listening[i] / 1000000));
+        }
+
+        // The first launch pays for loading classes, leave it out of the medians
+        long[] warmFirstFrame = Arrays.copyOfRange(firstFrame, 1, RUNS);
+        long[] warmListening = Arrays.copyOfRange(listening, 1, RUNS);
+        Arrays.sort(warmFirstFrame);
+        Arrays.sort(warmListening);
+        Log.i(TAG, String.format("%d messages of history: first frame %d ms, listening %d ms (medians)",
+                HISTORY_SIZE, warmFirstFrame[warmFirstFrame.length / 2] / 1000000,
+                warmListening[warmListening.length / 2] / 1000000));
+    }
+}
@@ -0,0 +1,387 @@
+package com.example.bluetoothchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Sends and receives attachments as content addressed chunks, so data the peer already has is
+// never sent again. The sender cuts the attachment with ContentChunker, keeps the chunks in its
+// ChunkStore and offers a MANIFEST listing each chunk's hash. The receiver answers with a
+// CHUNK_REQUEST for just the chunks missing from its own store, and rebuilds the file once they
+// have all arrived. Re-sharing a file, or a file that is mostly the same as one shared before,
+// costs little more than the manifest. A requested chunk that has been evicted from the sender's
+// store since is answered with CHUNK_MISSING, and the receiver gives up on that attachment.
+// MANIFEST, CHUNK and CHUNK_MISSING frames all take credit, see FlowControl. Only chunks of
+// attachments offered on this connection are served, whatever else the store holds.
+//
+// Frames (see ChatProtocol):
+//   MANIFEST       [attachment id: 8 bytes][name][size: 8 bytes][n: 4 bytes]
+//                  then n x [hash: 32 bytes][length: 4 bytes]
+//   CHUNK_REQUEST  [attachment id: 8 bytes] then repeated [hash: 32 bytes]
+//   CHUNK          [hash: 32 bytes][bytes]
+//   CHUNK_MISSING  [attachment id: 8 bytes][hash: 32 bytes]
+class AttachmentTransfer {
+
+    private static final int HASH_SIZE = ContentChunker.HASH_SIZE;
+    // Longest attachment name offered, in chars. writeUTF takes at most 3 bytes a char, so the
+    // manifest's id, name, size and count stay within the 1024 bytes MAX_CHUNKS leaves for them.
+    static final int MAX_NAME_LENGTH = 255;
+    // Most chunks whose hashes fit in one MANIFEST frame, about 14 MB of attachment
+    static final int MAX_CHUNKS = (ChatProtocol.MAX_BODY_SIZE - 1024) / (HASH_SIZE + 4);
+    // Most chunks we keep track of in each direction, those the peer asked for and those we wait
+    // for, a few full size attachments' worth. A peer that goes past it is dropped.
+    static final int MAX_PENDING_CHUNKS = 4 * MAX_CHUNKS;
+
+    // A chunk the peer asked for, and the attachment it asked for it for
+    private static class Request {
+        final long id;
+        final byte[] hash;
+
+        Request(long id, byte[] hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+
+    // An attachment we've had a manifest for and are still collecting chunks for
+    private static class Incoming {
+        final String name;
+        final byte[][] hashes;
+        final Set<String> missing = new HashSet<>();
+
+        Incoming(String name, byte[][] hashes) {
+            this.name = name;
+            this.hashes = hashes;
+        }
+    }
+
+    private final ChunkStore store;
+    private final File attachmentsDir;
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    // Chunk names of each attachment we offered, the only chunks the peer may ask for
+    private final Map<Long, Set<String>> offered = new HashMap<>();
+    // Chunks the peer asked us for, sent as credit allows
+    private final ArrayDeque<Request> requested = new ArrayDeque<>();
+    private byte[] nextChunkFrame;
+
+    AttachmentTransfer(ChunkStore store, File attachmentsDir) {
+        this.store = store;
+        this.attachmentsDir = attachmentsDir;
+    }
+
+    /**
+     * Cut an attachment into chunks, keep them in the store and write its MANIFEST frame to out.
+     * Names longer than MAX_NAME_LENGTH are shortened.
+     *
+     * @throws IOException if the attachment has more than MAX_CHUNKS chunks; nothing is stored
+     */
+    public void offer(long id, String name, InputStream data, DataOutputStream out) throws IOException {
+        name = shortName(name);
+        // Count the chunks before storing any, so an attachment we are going to refuse doesn't
+        // push other chunks out of the store first. The data is spooled to a file to read it twice.
+        attachmentsDir.mkdirs();
+        File spool = new File(attachmentsDir, id + ".offer.tmp");
+        try {
+            try (OutputStream spoolOut = new FileOutputStream(spool)) {
+                ContentChunker chunker = new ContentChunker(data);
+                int count = 0;
+                byte[] chunk;
+                while ((chunk = chunker.next()) != null) {
+                    if (++count > MAX_CHUNKS) {
+                        throw new IOException("Attachment too large");
+                    }
+                    spoolOut.write(chunk);
+                }
+            }
+            try (InputStream spoolIn = new FileInputStream(spool)) {
+                writeManifest(id, name, spoolIn, out);
+            }
+        } finally {
+            spool.delete();
+        }
+    }
+
+    // Cut data known to be within MAX_CHUNKS, store its chunks and write the MANIFEST frame
+    private void writeManifest(long id, String name, InputStream data, DataOutputStream out) throws IOException {
+        ContentChunker chunker = new ContentChunker(data);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entryData = new DataOutputStream(entries);
+        long size = 0;
+        int count = 0;
+        Set<String> names = new HashSet<>();
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            byte[] hash = ContentChunker.hash(chunk);
+            store.put(hash, chunk);
+            names.add(ChunkStore.hex(hash));
+            entryData.write(hash);
+            entryData.writeInt(chunk.length);
+            size += chunk.length;
+            count++;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyData = new DataOutputStream(body);
+        bodyData.writeLong(id);
+        bodyData.writeUTF(name);
+        bodyData.writeLong(size);
+        bodyData.writeInt(count);
+        entries.writeTo(bodyData);
+        synchronized (this) {
+            offered.put(id, names);
+        }
+        out.writeByte(ChatProtocol.FRAME_MANIFEST);
+        out.writeInt(body.size());
+        body.writeTo(out);
+    }
+
+    /**
+     * Handle a MANIFEST frame by asking the peer for the chunks we don't have.
+     *
+     * @return The attachment if we had every chunk already, otherwise null
+     */
+    public File onManifest(byte[] body, DataOutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long id = in.readLong();
+        String name = in.readUTF();
+        in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > MAX_CHUNKS) {
+            throw new IOException("Bad chunk count " + count);
+        }
+        byte[][] hashes = new byte[count][HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            in.readFully(hashes[i]);
+            in.readInt();
+        }
+
+        synchronized (this) {
+            if (waitingChunks() + count > MAX_PENDING_CHUNKS) {
+                throw new IOException("Too many attachments under way");
+            }
+        }
+        Incoming attachment = new Incoming(name, hashes);
+        for (byte[] hash : hashes) {
+            if (!store.contains(hash)) {
+                attachment.missing.add(ChunkStore.hex(hash));
+            }
+        }
+        if (attachment.missing.isEmpty()) {
+            return assemble(id, attachment, out);
+        }
+        synchronized (this) {
+            incoming.put(id, attachment);
+        }
+        writeRequest(id, attachment, out);
+        return null;
+    }
+
+    /**
+     * Handle a CHUNK_REQUEST frame by queueing the requested chunks for sending.
+     *
+     * @throws IOException if the peer asks for a chunk of anything but an attachment we offered it
+     */
+    public synchronized void onRequest(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long id = in.readLong();
+        if (requested.size() + in.available() / HASH_SIZE > MAX_PENDING_CHUNKS) {
+            throw new IOException("Too many chunks requested");
+        }
+        Set<String> names = offered.get(id);
+        if (names == null) {
+            throw new IOException("Chunks requested for an attachment never offered");
+        }
+        while (in.available() >= HASH_SIZE) {
+            byte[] hash = new byte[HASH_SIZE];
+            in.readFully(hash);
+            if (!names.contains(ChunkStore.hex(hash))) {
+                throw new IOException("Chunk requested that was never offered");
+            }
+            requested.addLast(new Request(id, hash));
+        }
+    }
+
+    /**
+     * Handle a CHUNK_MISSING frame: the peer can't send a chunk we asked for, so stop waiting for
+     * the attachment that needed it.
+     *
+     * @return The name of the attachment given up on, or null if we weren't waiting for it
+     */
+    public synchronized String onMissing(byte[] body) throws IOException {
+        if (body.length < 8) {
+            throw new IOException("Short chunk missing frame");
+        }
+        Incoming attachment = incoming.remove(new DataInputStream(new ByteArrayInputStream(body)).readLong());
+        return attachment != null ? attachment.name : null;
+    }
+
+    /**
+     * Handle a CHUNK frame by storing the chunk.
+     *
+     * @return The attachments that chunk completed
+     */
+    public List<File> onChunk(byte[] body, DataOutputStream out) throws IOException {
+        if (body.length < HASH_SIZE) {
+            throw new IOException("Short chunk frame");
+        }
+        byte[] hash = new byte[HASH_SIZE];
+        System.arraycopy(body, 0, hash, 0, HASH_SIZE);
+        byte[] chunk = new byte[body.length - HASH_SIZE];
+        System.arraycopy(body, HASH_SIZE, chunk, 0, chunk.length);
+        // Only keep what hashes right, anything else would poison the store for good
+        if (!Arrays.equals(ContentChunker.hash(chunk), hash)) {
+            throw new IOException("Chunk doesn't match its hash");
+        }
+        store.put(hash, chunk);
+
+        String name = ChunkStore.hex(hash);
+        List<Long> done = new ArrayList<>();
+        List<Incoming> doneAttachments = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Incoming> entry : incoming.entrySet()) {
+                Incoming attachment = entry.getValue();
+                if (attachment.missing.remove(name) && attachment.missing.isEmpty()) {
+                    done.add(entry.getKey());
+                    doneAttachments.add(attachment);
+                }
+            }
+            for (Long id : done) {
+                incoming.remove(id);
+            }
+        }
+
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < done.size(); i++) {
+            File file = assemble(done.get(i), doneAttachments.get(i), out);
+            if (file != null) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Return the next CHUNK frame to send the peer, or null if it hasn't asked for any. The frame
+     * stays next until chunkSent() is called. A requested chunk that has been evicted since we
+     * offered it is answered with a CHUNK_MISSING frame instead, and the rest of that
+     * attachment's requests are dropped.
+     */
+    public synchronized byte[] peekChunkFrame() throws IOException {
+        if (nextChunkFrame != null || requested.isEmpty()) {
+            return nextChunkFrame;
+        }
+        Request request = requested.removeFirst();
+        byte[] hash = request.hash;
+        byte[] chunk = store.get(hash);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream frameData = new DataOutputStream(frame);
+        if (chunk == null) {
+            frameData.writeByte(ChatProtocol.FRAME_CHUNK_MISSING);
+            frameData.writeInt(8 + HASH_SIZE);
+            frameData.writeLong(request.id);
+            frameData.write(hash);
+            Iterator<Request> it = requested.iterator();
+            while (it.hasNext()) {
+                if (it.next().id == request.id) {
+                    it.remove();
+                }
+            }
+        } else {
+            frameData.writeByte(ChatProtocol.FRAME_CHUNK);
+            frameData.writeInt(HASH_SIZE + chunk.length);
+            frameData.write(hash);
+            frameData.write(chunk);
+        }
+        nextChunkFrame = frame.toByteArray();
+        return nextChunkFrame;
+    }
+
+    public synchronized void chunkSent() {
+        nextChunkFrame = null;
+    }
+
+    /**
+     * Return the number of chunks the peer has asked for that we haven't sent yet.
+     */
+    public synchronized int requestedCount() {
+        return requested.size() + (nextChunkFrame != null ? 1 : 0);
+    }
+
+    // Chunks of the attachments we are still collecting
+    private int waitingChunks() {
+        int count = 0;
+        for (Incoming attachment : incoming.values()) {
+            count += attachment.hashes.length;
+        }
+        return count;
+    }
+
+    // Rebuild the attachment from the store. A chunk evicted while we waited for the rest is asked
+    // for again and the attachment goes back to waiting.
+    private File assemble(long id, Incoming attachment, DataOutputStream out) throws IOException {
+        attachmentsDir.mkdirs();
+        File file = new File(attachmentsDir, new File(attachment.name).getName());
+        if (file.exists()) {
+            file = new File(attachmentsDir, id + "-" + file.getName());
+        }
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            for (byte[] hash : attachment.hashes) {
+                byte[] chunk = store.get(hash);
+                if (chunk == null) {
+                    attachment.missing.add(ChunkStore.hex(hash));
+                    continue;
+                }
+                fileOut.write(chunk);
+            }
+        }
+        if (!attachment.missing.isEmpty()) {
+            file.delete();
+            synchronized (this) {
+                incoming.put(id, attachment);
+            }
+            writeRequest(id, attachment, out);
+            return null;
+        }
+        return file;
+    }
+
+    // Cut a name down to MAX_NAME_LENGTH, keeping a short extension so it still opens the same way
+    static String shortName(String name) {
+        if (name.length() <= MAX_NAME_LENGTH) {
+            return name;
+        }
+        int dot = name.lastIndexOf('.');
+        String extension = dot >= 0 && name.length() - dot <= 16 ? name.substring(dot) : "";
+        return name.substring(0, MAX_NAME_LENGTH - extension.length()) + extension;
+    }
+
+    private void writeRequest(long id, Incoming attachment, DataOutputStream out) throws IOException {
+        out.writeByte(ChatProtocol.FRAME_CHUNK_REQUEST);
+        out.writeInt(8 + attachment.missing.size() * HASH_SIZE);
+        out.writeLong(id);
+        // An attachment can use the same chunk more than once, ask for it once
+        Set<String> written = new HashSet<>();
+        for (byte[] hash : attachment.hashes) {
+            String name = ChunkStore.hex(hash);
+            if (attachment.missing.contains(name) && written.add(name)) {
+                out.write(hash);
+            }
+        }
+    }
+}
@@ -4,12 +4,16 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.widget.Button;
 import android.widget.EditText;
@@ -22,8 +26,12 @@ import androidx.recyclerview.widget.DefaultItemAnimator;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 // import androidRecyclerView.MessageAdapter;
 
@@ -36,6 +44,8 @@ public class BluetoothChat extends Activity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_HISTORY = 6;
+    public static final int MESSAGE_ATTACHMENT = 7;
 
     // Key names received from the BluetoothChatService Handler
     public static final String DEVICE_NAME = "device_name";
@@ -55,9 +65,18 @@ public class BluetoothChat extends Activity {
 
     // Local Bluetooth Adapter
     private BluetoothAdapter mBluetoothAdapter = null;
+    // The author our own messages have in the history, shown as "Me"
+    private String mLocalName = null;
 
-    // Member object for the chat services
+    // Member object for the chat services, null until the startup thread has brought it up
     private BluetoothChatService mChatService = null;
+    private boolean mChatStarting = false;
+    // Read by the startup thread
+    private volatile boolean mDestroyed = false;
+
+    // Startup threads take turns here, so one whose Activity was destroyed in the meantime can't
+    // take the chat service over from a newer Activity's
+    private static final Object sStartupLock = new Object();
 
     private RecyclerView mRecyclerView;
     private LinearLayoutManager mLayoutManager;
@@ -66,10 +85,15 @@ public class BluetoothChat extends Activity {
     public int counter = 0;
 
     private List messageList = new ArrayList();
+    // The messages at the head of messageList that came from the RecentSnapshot
+    private List<MessageHistory.Entry> mSnapshot = new ArrayList<>();
+    // Rows of our messages still waiting in the outbox, by message id
+    private final Map<Long, androidRecyclerView.Message> mPendingRows = new HashMap<>();
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.begin();
 
         setContentView(R.layout.main_activity);
 
@@ -81,7 +105,25 @@ public class BluetoothChat extends Activity {
         mAdapter = new MessageAdapter(getBaseContext(), messageList);
         mRecyclerView.setAdapter(mAdapter);
         mRecyclerView.setItemAnimator(new DefaultItemAnimator());
+
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (mBluetoothAdapter != null) {
+            mLocalName = mBluetoothAdapter.getName();
+        }
+
+        // Show the last few messages on the first frame. The full history takes a while to read,
+        // it comes up with the chat service in setupChat().
+        mSnapshot = RecentSnapshot.read(getFilesDir());
+        messageList.addAll(toMessages(mSnapshot));
+        mAdapter.notifyDataSetChanged();
+        mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.mark(StartupTrace.FIRST_FRAME);
+                return true;
+            }
+        });
 
         // If the adapter is null, then bluetooth is not supported
         if (mBluetoothAdapter == null) {
@@ -98,7 +140,7 @@ public class BluetoothChat extends Activity {
             Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableIntent, REQUEST_ENABLE_BLUETOOTH);
         } else {
-            if (mChatService == null) {
+            if (mChatService == null && !mChatStarting) {
                 setupChat();
             }
         }
@@ -127,11 +169,113 @@ public class BluetoothChat extends Activity {
             }
         });
 
-        // Initialize the BluetoothChatService to perform bluetooth connections
-        mChatService = new BluetoothChatService(this, mHandler);
-
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer("");
+
+        // Initialize the BluetoothChatService to perform bluetooth connections
+        startChatService();
+    }
+
+    // Bring the BluetoothChatService up on a background thread. Reading the history, outbox and
+    // chunk store and opening the listening socket all wait on the disk or the Bluetooth stack,
+    // and none of it is needed to draw the first frame.
+    private void startChatService() {
+        mChatStarting = true;
+        final Context context = getApplicationContext();
+        new Thread("ChatStartup") {
+            @Override
+            public void run() {
+                final BluetoothChatService service;
+                synchronized (sStartupLock) {
+                    if (mDestroyed) {
+                        return;
+                    }
+                    try {
+                        service = BluetoothChatService.takeOver(context, mHandler);
+                    } catch (InterruptedException e) {
+                        // Nobody interrupts this thread, there's no chat to start without a service
+                        return;
+                    }
+                }
+                final List<MessageHistory.Entry> recent = service.recentMessages();
+                StartupTrace.mark(StartupTrace.HISTORY_LOADED);
+                // Don't listen for a connection the Activity will never see, chatServiceReady()
+                // stops the service anyway
+                if (!mDestroyed) {
+                    service.start();
+                    StartupTrace.mark(StartupTrace.LISTENING);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        chatServiceReady(service, recent);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private void chatServiceReady(BluetoothChatService service, List<MessageHistory.Entry> recent) {
+        mChatStarting = false;
+        if (mDestroyed) {
+            BluetoothChatService.release(service);
+            return;
+        }
+        mChatService = service;
+        // The snapshot is behind the history if we were killed before saving it, catch up
+        if (!sameMessages(mSnapshot, recent)) {
+            messageList.subList(0, mSnapshot.size()).clear();
+            messageList.addAll(0, toMessages(recent));
+            mSnapshot = recent;
+            mAdapter.notifyDataSetChanged();
+            mChatService.saveRecentSnapshot();
+        }
+        // Messages a previous Activity queued and nobody has sent yet
+        for (MessageOutbox.Entry entry : mChatService.pendingMessages()) {
+            addPendingRow(entry.id, entry.text);
+        }
+        mAdapter.notifyDataSetChanged();
+    }
+
+    private void addPendingRow(long id, byte[] text) {
+        androidRecyclerView.Message row = new androidRecyclerView.Message(counter++, new String(text), "Me (pending)");
+        mPendingRows.put(id, row);
+        messageList.add(row);
+    }
+
+    // Show one of our messages as sent, in place of its pending row if it has one
+    private void addSentRow(long id, byte[] text) {
+        androidRecyclerView.Message row = new androidRecyclerView.Message(counter++, new String(text), "Me");
+        int index = messageList.indexOf(mPendingRows.remove(id));
+        if (index >= 0) {
+            messageList.set(index, row);
+        } else {
+            messageList.add(row);
+        }
+    }
+
+    private String authorName(String author) {
+        return author.equals(mLocalName) ? "Me" : author;
+    }
+
+    private List<androidRecyclerView.Message> toMessages(List<MessageHistory.Entry> entries) {
+        List<androidRecyclerView.Message> messages = new ArrayList<>(entries.size());
+        for (MessageHistory.Entry entry : entries) {
+            messages.add(new androidRecyclerView.Message(counter++, new String(entry.text), authorName(entry.author)));
+        }
+        return messages;
+    }
+
+    private static boolean sameMessages(List<MessageHistory.Entry> a, List<MessageHistory.Entry> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i).id != b.get(i).id) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -142,14 +286,19 @@ public class BluetoothChat extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
+        // Keep the snapshot the next start shows on its first frame up to date
+        if (mChatService != null) {
+            mChatService.saveRecentSnapshot();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Stop the bluetooth chat services
+        mDestroyed = true;
+        // Stop the bluetooth chat services, and let go of them and our Handler
         if (mChatService != null) {
-            mChatService.stop();
+            BluetoothChatService.release(mChatService);
         }
     }
 
@@ -162,16 +311,27 @@ public class BluetoothChat extends Activity {
     }
 
     private void sendMessage(String message) {
-        // Check if connected
-        if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
-            Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
-            return;
-        }
         // Check that there's something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
+            // Still reading the outbox, keep the message in the EditText for now
+            if (mChatService == null) {
+                Toast.makeText(this, R.string.chat_starting, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Get the message bytes and tell the BluetoothChatService to write. If we're not
+            // connected the message waits in the outbox until we are.
             byte[] send = message.getBytes();
-            mChatService.write(send);
+            long id = mChatService.write(send);
+            if (id == -1) {
+                Toast.makeText(this, R.string.message_not_queued, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Shown as pending until MESSAGE_WRITE says it has been sent
+            addPendingRow(id, send);
+            mAdapter.notifyDataSetChanged();
+            if (mChatService.getState() != BluetoothChatService.STATE_CONNECTED) {
+                Toast.makeText(this, R.string.message_queued, Toast.LENGTH_SHORT).show();
+            }
             // Reset out string buffer to zero and clear the EditText field
             mOutStringBuffer.setLength(0);
             mOutEditText.setText(mOutStringBuffer);
@@ -198,11 +358,10 @@ public class BluetoothChat extends Activity {
         public void handleMessage(@NonNull Message msg) {
             switch (msg.what) {
                 case MESSAGE_WRITE:
-                    byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
+                    // one of our messages has left the outbox
+                    MessageOutbox.Entry written = (MessageOutbox.Entry) msg.obj;
+                    addSentRow(written.id, written.text);
                     mAdapter.notifyDataSetChanged();
-                    messageList.add(new androidRecyclerView.Message(counter++, writeMessage, "Me"));
                     break;
                 case MESSAGE_READ:
                     byte[] readBuf = (byte[]) msg.obj;
@@ -220,6 +379,27 @@ public class BluetoothChat extends Activity {
                 case MESSAGE_TOAST:
                     Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST), Toast.LENGTH_SHORT).show();
                     break;
+
+                case MESSAGE_HISTORY:
+                    // messages the other device had and we didn't, from whoever wrote them
+                    List<MessageHistory.Entry> entries = (List<MessageHistory.Entry>) msg.obj;
+                    for (MessageHistory.Entry entry : entries) {
+                        if (mPendingRows.containsKey(entry.id)) {
+                            // the peer heard one of ours before the writer could record it as sent
+                            addSentRow(entry.id, entry.text);
+                        } else {
+                            messageList.add(new androidRecyclerView.Message(counter++, new String(entry.text), authorName(entry.author)));
+                        }
+                    }
+                    mAdapter.notifyDataSetChanged();
+                    break;
+
+                case MESSAGE_ATTACHMENT:
+                    // an attachment has been put together in the app's files
+                    File attachment = (File) msg.obj;
+                    messageList.add(new androidRecyclerView.Message(counter++, attachment.getName(), mConnectedDeviceName));
+                    mAdapter.notifyDataSetChanged();
+                    break;
             }
         }
     };
@@ -234,6 +414,10 @@ public class BluetoothChat extends Activity {
                     String address = data.getExtras().getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
                     // Get the BluetoothDevice object
                     BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+                    if (mChatService == null) {
+                        Toast.makeText(this, R.string.chat_starting, Toast.LENGTH_SHORT).show();
+                        break;
+                    }
                     mChatService.connect(device);
                 }
 
@@ -252,6 +436,96 @@ public class BluetoothChat extends Activity {
         }
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.option_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.capture_connections).setChecked(mChatService != null && mChatService.isCaptureEnabled());
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.dump_flight_recorder) {
+            dumpFlightRecorder();
+            return true;
+        }
+        if (item.getItemId() == R.id.capture_connections) {
+            if (mChatService == null) {
+                Toast.makeText(this, R.string.chat_starting, Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            // Takes effect from the next connection on
+            mChatService.setCaptureEnabled(!item.isChecked());
+            item.setChecked(!item.isChecked());
+            return true;
+        }
+        if (item.getItemId() == R.id.replay_capture) {
+            replayCapture();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Save the recent connection events for FlightRecorderDecoder, off the UI thread. Fetch the
+    // file with "adb shell run-as com.example.bluetoothchat cat files/<name>".
+    private void dumpFlightRecorder() {
+        if (mChatService == null) {
+            Toast.makeText(this, R.string.chat_starting, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final BluetoothChatService service = mChatService;
+        new Thread("DumpFlightRecorder") {
+            @Override
+            public void run() {
+                try {
+                    File file = service.dumpFlightRecorder();
+                    postToast(getString(R.string.flight_recorder_dumped, file.getName()));
+                } catch (IOException e) {
+                    postToast(getString(R.string.flight_recorder_not_dumped));
+                }
+            }
+        }.start();
+    }
+
+    // Play the newest capture back into the chat, off the UI thread, and show how it went
+    private void replayCapture() {
+        if (mChatService == null) {
+            Toast.makeText(this, R.string.chat_starting, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final BluetoothChatService service = mChatService;
+        new Thread("ReplayCapture") {
+            @Override
+            public void run() {
+                File capture = service.latestCapture();
+                if (capture == null) {
+                    postToast(getString(R.string.no_capture));
+                    return;
+                }
+                try {
+                    WireReplay.Result result = service.replay(capture, false);
+                    postToast(getString(R.string.capture_replayed, capture.getName(), result.toString()));
+                } catch (IOException e) {
+                    postToast(getString(R.string.capture_not_replayed, capture.getName()));
+                }
+            }
+        }.start();
+    }
+
+    // Show a toast from any thread
+    private void postToast(String text) {
+        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(TOAST, text);
+        msg.setData(bundle);
+        mHandler.sendMessage(msg);
+    }
+
     public void connect(View v) {
         Intent serverIntent = new Intent(this, DeviceListActivity.class);
         startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
@@ -2,69 +2,63 @@ package com.example.bluetoothchat;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 // This class does all the work for setting up and managing Bluetooth connections with other
 // devices. It has a thread that listens for incoming connections, a thread for connecting with a
 // device and a thread for performing data transmission when connected.
+//
+// All three threads and the UI call in here at the same time. Every change to the thread fields
+// and the state happens under the service lock, and a thread that finds it has been replaced or
+// cancelled by the time it gets the lock closes its socket and leaves without touching the state.
 public class BluetoothChatService {
 
-    // Name for the SDP record when creating server socket
-    private static final String NAME = "BluetoothChat";
-
-    /*
-    A UUID (Universally Unique IDentifier) is 128 bits long, and can guarantee
-    uniqueness across space and time.  UUIDs were originally used in the
-    Apollo Network Computing System and later in the Open Software
-    Foundation's (OSF) Distributed Computing Environment (DCE), and then
-    in Microsoft Windows platforms.
-
-        The formal definition of the UUID string representation is provided by the following ABNF [7]:
-
-          UUID                   = time-low "-" time-mid "-"
-                                   time-high-and-version "-"
-                                   clock-seq-and-reserved
-                                   clock-seq-low "-" node
-          time-low               = 4hexOctet
-          time-mid               = 2hexOctet
-          time-high-and-version  = 2hexOctet
-          clock-seq-and-reserved = hexOctet
-          clock-seq-low          = hexOctet
-          node                   = 6hexOctet
-          hexOctet               = hexDigit hexDigit
-          hexDigit =
-                "0" / "1" / "2" / "3" / "4" / "5" / "6" / "7" / "8" / "9" /
-                "a" / "b" / "c" / "d" / "e" / "f" /
-                "A" / "B" / "C" / "D" / "E" / "F"
-
-       The following is an example of the string representation of a UUID as
-       a URN:
-
-       urn:uuid:f81d4fae-7dec-11d0-a765-00a0c91e6bf6
-
-       See: https://www.ietf.org/rfc/rfc4122.txt for more detail
-    */
-
-    // UUID for this application
-    private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200-c9a66");
+    // Most bytes of queued messages packed into a single write when flushing the outbox
+    private static final int FLUSH_BATCH_SIZE = 8 * 1024;
+    // Disk space kept for attachment chunks
+    private static final long CHUNK_STORE_SIZE = 64 * 1024 * 1024;
+    // Most bytes of frames waiting for a connection's writer. Replies to the peer's sync frames
+    // aren't paid for with credit, so a peer asking faster than we can answer is dropped here.
+    private static final int MAX_UNSENT_BYTES = 4 * 1024 * 1024;
 
     // Member fields
-    private final BluetoothAdapter bluetoothAdapter;
+    private final ChatTransport transport;
     private final Handler mHandler;
     private AcceptThread acceptThread;
     private ConnectThread connectThread;
     private ConnectedThread connectedThread;
     private int mState;
+    private final File filesDir;
+    private final File cacheDir;
+    private boolean captureEnabled;
+    private final MessageOutbox outbox;
+    private final MessageHistory history;
+    private final ChunkStore chunkStore;
+    // Held while a batch is peeked, written and removed from the outbox, so a connection on its
+    // way out and the one replacing it can't both send the same batch and both remove it
+    private final Object outboxLock = new Object();
+    // Set once takeOver() has replaced this instance, which then never starts again
+    private boolean retired;
+
+    // The instance takeOver() made last, the one that owns the outbox and history files, until
+    // release() lets it go with its Activity
+    private static BluetoothChatService current;
 
     // Constants that indicate the current connection state
     public static final short STATE_NONE = 0;             // doing nothing
@@ -72,14 +66,72 @@ public class BluetoothChatService {
     public static final short STATE_CONNECTING = 2;       // now initiating and outgoing connection
     public static final short STATE_CONNECTED = 3;        // now connected to a remote device
 
+    /**
+     * Reads the outbox, history and chunk store from the app's private storage, so create it off
+     * the UI thread.
+     */
     public BluetoothChatService(Context context, Handler handler) {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this(context, handler, new BluetoothTransport(BluetoothAdapter.getDefaultAdapter()));
+    }
+
+    /**
+     * Create the service for a new UI Activity, after stopping the one made for the previous
+     * Activity and waiting for its threads to finish. Each instance keeps its own copy of the
+     * outbox and history, so two running at once lose messages: one deletes outbox.log when its
+     * queue empties while the other still appends to it. Reads the files, so call it off the UI
+     * thread.
+     */
+    public static BluetoothChatService takeOver(Context context, Handler handler) throws InterruptedException {
+        synchronized (BluetoothChatService.class) {
+            if (current != null) {
+                current.retire();
+            }
+            current = new BluetoothChatService(context, handler);
+            return current;
+        }
+    }
+
+    /**
+     * Stop a service takeOver() made, for good, when its Activity is destroyed. Otherwise current
+     * would keep it, and through its Handler the destroyed Activity, until the next takeOver().
+     * Waits for the service's threads on a thread of its own, so it can be called from the UI
+     * thread.
+     */
+    public static void release(final BluetoothChatService service) {
+        new Thread("ChatRelease") {
+            @Override
+            public void run() {
+                synchronized (BluetoothChatService.class) {
+                    // A newer Activity's takeOver() has retired it already
+                    if (current != service) {
+                        return;
+                    }
+                    try {
+                        service.retire();
+                    } catch (InterruptedException e) {
+                        // Nobody interrupts this thread, the service is stopped either way
+                    }
+                    current = null;
+                }
+            }
+        }.start();
+    }
+
+    BluetoothChatService(Context context, Handler handler, ChatTransport transport) {
+        this.transport = transport;
         mState = STATE_NONE;
         mHandler = handler;
+        filesDir = context.getFilesDir();
+        cacheDir = context.getCacheDir();
+        FlightRecorder.installCrashDump(filesDir);
+        outbox = new MessageOutbox(filesDir);
+        history = new MessageHistory(filesDir);
+        chunkStore = new ChunkStore(new File(filesDir, "chunks"), CHUNK_STORE_SIZE);
     }
 
     private synchronized void setState(int state) {
         mState = state;
+        FlightRecorder.record(FlightRecorder.EV_STATE, state);
         // Give the new state the the Handler so the UI Activity can update
         mHandler.obtainMessage(BluetoothChat.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
@@ -89,6 +141,9 @@ public class BluetoothChatService {
     }
 
     public synchronized void start() {
+        if (retired) {
+            return;
+        }
         // Cancel any thread attempting to make a connection
         if (connectThread != null) {
             connectThread.cancel();
@@ -113,13 +168,18 @@ public class BluetoothChatService {
      *
      * @param device the BluetoothDevice to connect
      */
-    public synchronized void connect(BluetoothDevice device) {
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    synchronized void connect(String address) {
+        if (retired) {
+            return;
+        }
         // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (connectThread != null) {
-                connectThread.cancel();
-                connectThread = null;
-            }
+        if (connectThread != null) {
+            connectThread.cancel();
+            connectThread = null;
         }
         // Cancel any thread currently running a connection
         if (connectedThread != null) {
@@ -127,12 +187,17 @@ public class BluetoothChatService {
             connectedThread = null;
         }
         // Start the thread to connect with the given device
-        connectThread = new ConnectThread(device);
+        connectThread = new ConnectThread(address);
         connectThread.start();
         setState(STATE_CONNECTING);
     }
 
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    /*
+     * Start the ConnectedThread to manage a new connection.
+     *
+     * @param initiator true if we made the connection, that side opens the history sync
+     */
+    synchronized void connected(ChatTransport.Connection socket, boolean initiator) {
         // Cancel the thread that completed the connection
         if (connectThread != null) {
             connectThread.cancel();
@@ -152,13 +217,14 @@ public class BluetoothChatService {
         }
 
         // Start the thread to manage the connection and perform transmissions
-        connectedThread = new ConnectedThread(socket);
+        String remoteName = socket.getRemoteName();
+        connectedThread = new ConnectedThread(socket, remoteName, initiator);
         connectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(BluetoothChat.DEVICE_NAME, device.getName());
+        bundle.putString(BluetoothChat.DEVICE_NAME, remoteName);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
         setState(STATE_CONNECTED);
@@ -186,29 +252,235 @@ public class BluetoothChatService {
         setState(STATE_NONE);
     }
 
+    // Stop for good and wait until none of our threads can touch the files any more
+    private void retire() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        synchronized (this) {
+            retired = true;
+            if (acceptThread != null) {
+                threads.add(acceptThread);
+            }
+            if (connectThread != null) {
+                threads.add(connectThread);
+            }
+            if (connectedThread != null) {
+                threads.add(connectedThread);
+                threads.add(connectedThread.writer);
+            }
+            stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queue a message for the remote device. The message is persisted in the outbox first, so if
+     * we are not connected it is kept and sent as soon as a connection is made. It goes into the
+     * history, and to the UI Activity as MESSAGE_WRITE with its MessageOutbox.Entry, once it has
+     * been sent.
      *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @param out The bytes to write, at most ChatProtocol.MAX_TEXT_SIZE
+     * @return The id of the queued message, or -1 if the message is too long or could not be
+     *         queued
+     * @see ConnectedThread#flushOutbox()
+     */
+    public long write(byte[] out) {
+        if (out.length > ChatProtocol.MAX_TEXT_SIZE) {
+            return -1;
+        }
+        MessageOutbox.Entry entry;
+        try {
+            entry = outbox.add(out);
+        } catch (IOException e) {
+            FlightRecorder.error(FlightRecorder.ERR_OUTBOX);
+            return -1;
+        }
+        flushOutbox();
+        return entry.id;
+    }
+
+    /**
+     * The messages still waiting in the outbox, oldest first. One the writer has already put in
+     * the history is left out: its MESSAGE_WRITE is on its way.
+     */
+    public List<MessageOutbox.Entry> pendingMessages() {
+        List<MessageOutbox.Entry> pending = new ArrayList<>();
+        for (MessageOutbox.Entry entry : outbox.entries()) {
+            if (!history.contains(entry.id)) {
+                pending.add(entry);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * The name our own messages carry in the history.
      */
-    public void write(byte[] out) {
+    public String getLocalName() {
+        return transport.getLocalName();
+    }
+
+    /**
+     * Send whatever is queued in the outbox to the ConnectedThread in an unsynchronized manner
+     */
+    private void flushOutbox() {
         // Create temporary object
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
-            if (mState != STATE_CONNECTED) { return; }
+            if (mState != STATE_CONNECTED || connectedThread == null) { return; }
             r = connectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        r.flushOutbox();
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Write the flight recorder's recent connection events to a new file in the app's private
+     * storage. Decode it with FlightRecorderDecoder.
+     *
+     * @return The dump file
      */
-    public void connectionFailed() {
-        setState(STATE_LISTEN);
+    public File dumpFlightRecorder() throws IOException {
+        File file = new File(filesDir, "flight-" + System.currentTimeMillis() + ".bin");
+        FlightRecorder.dump(file);
+        return file;
+    }
+
+    /**
+     * Return the most recent messages in the history, oldest first, as many as a RecentSnapshot
+     * holds.
+     */
+    public List<MessageHistory.Entry> recentMessages() {
+        return history.latest(RecentSnapshot.SIZE);
+    }
+
+    /**
+     * Save the most recent messages to the RecentSnapshot on a new thread, for the UI Activity to
+     * show straight away next time it starts.
+     */
+    public void saveRecentSnapshot() {
+        final List<MessageHistory.Entry> recent = recentMessages();
+        new Thread("SaveSnapshot") {
+            @Override
+            public void run() {
+                try {
+                    RecentSnapshot.write(filesDir, recent);
+                } catch (IOException e) {
+                    // The next start shows the old snapshot until the history has loaded
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Offer an attachment to the connected device on a new thread. Only the chunks the device
+     * doesn't have already are sent; they are kept in the chunk store so the next device that
+     * asks for the same content gets it from there.
+     *
+     * @param name The file name to show the remote user
+     * @param data The attachment contents, closed when done
+     * @return false if we are not connected
+     */
+    public boolean sendAttachment(final String name, final InputStream data) {
+        final ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED || connectedThread == null) { return false; }
+            r = connectedThread;
+        }
+        new Thread("SendAttachment") {
+            @Override
+            public void run() {
+                try {
+                    r.offerAttachment(name, data);
+                } catch (IOException e) {
+                    FlightRecorder.error(FlightRecorder.ERR_WRITE);
+                } finally {
+                    try {
+                        data.close();
+                    } catch (IOException e) {
+                        // Nothing left to read from it anyway
+                    }
+                }
+            }
+        }.start();
+        return true;
+    }
+
+    /**
+     * Capture the raw bytes of every connection made from now on to a wire-*.cap file in the
+     * app's private storage, for playing back with replay().
+     */
+    public synchronized void setCaptureEnabled(boolean enabled) {
+        captureEnabled = enabled;
+    }
+
+    public synchronized boolean isCaptureEnabled() {
+        return captureEnabled;
+    }
+
+    /**
+     * Return the most recent capture in the app's private storage, or null if there is none.
+     */
+    public File latestCapture() {
+        File[] captures = filesDir.listFiles();
+        File latest = null;
+        if (captures != null) {
+            for (File file : captures) {
+                if (file.getName().startsWith("wire-") && file.getName().endsWith(".cap")
+                        && (latest == null || file.getName().compareTo(latest.getName()) > 0)) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Play a captured session back through the receive pipeline, posting to the UI Activity just
+     * like a live connection. The replay runs against a scratch history, chunk store and
+     * attachments folder, emptied first, so its messages are neither dropped as duplicates nor
+     * added to the real history, and every replay of a capture takes the same path. Blocks until
+     * the replay ends, so call it off the UI thread.
+     *
+     * @param capture  A file written while capture was enabled
+     * @param realTime true to keep the recorded timing, false to replay as fast as possible
+     * @return How long the replay took and how many bytes went through it
+     */
+    public WireReplay.Result replay(File capture, boolean realTime) throws IOException {
+        File scratch = new File(cacheDir, "replay");
+        deleteTree(scratch);
+        scratch.mkdirs();
+        WireReplay replay = new WireReplay(capture, realTime);
+        AttachmentTransfer attachments = new AttachmentTransfer(
+                new ChunkStore(new File(scratch, "chunks"), CHUNK_STORE_SIZE), new File(scratch, "attachments"));
+        FrameReceiver receiver = new FrameReceiver(new MessageHistory(scratch), attachments, mHandler,
+                capture.getName(), replay.discardReplies(), replay.flowControl());
+        try {
+            return replay.run(receiver);
+        } catch (IOException e) {
+            FlightRecorder.error(FlightRecorder.ERR_CAPTURE);
+            throw e;
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Indicate that the connection attempt failed, go back to listening and notify the UI Activity.
+     */
+    private synchronized void connectionFailed() {
+        // Restart the service to restart listening mode
+        start();
 
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -218,10 +490,11 @@ public class BluetoothChatService {
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that the connection was lost, go back to listening and notify the UI Activity.
      */
-    public void connectionLost() {
-        setState(STATE_LISTEN);
+    private synchronized void connectionLost() {
+        // Restart the service to restart listening mode
+        start();
 
         Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -236,114 +509,129 @@ public class BluetoothChatService {
      */
     private class AcceptThread extends Thread {
         // The local server socket
-        private final BluetoothServerSocket bluetoothServerSocket;
+        private final ChatTransport.Server serverSocket;
 
         public AcceptThread() {
-            BluetoothServerSocket tmp = null;
+            ChatTransport.Server tmp = null;
             // Create a new listening server socket
             try {
-                tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID);
+                tmp = transport.listen();
+                FlightRecorder.record(FlightRecorder.EV_LISTEN, 0);
             } catch (IOException e) {
-
+                FlightRecorder.error(FlightRecorder.ERR_LISTEN);
             }
-            bluetoothServerSocket = tmp;
+            serverSocket = tmp;
         }
 
         public void run() {
             setName("AcceptThread");
-            BluetoothSocket socket = null;
-            // Listen to the server socket if device is not connected
-            while (mState != STATE_CONNECTED) {
+            if (serverSocket == null) {
+                return;
+            }
+            // Listen to the server socket until we connect or are cancelled
+            while (true) {
+                ChatTransport.Connection socket;
                 try {
                     // This is a blocking call and will only return on a successful connection or
                     // an exception
-                    socket = bluetoothServerSocket.accept();
+                    socket = serverSocket.accept();
+                    FlightRecorder.record(FlightRecorder.EV_ACCEPTED, 0);
                 } catch (IOException e) {
+                    FlightRecorder.error(FlightRecorder.ERR_ACCEPT);
                     break;
                 }
-            }
-            // If connection was accepted
-            if (socket != null) {
                 synchronized (BluetoothChatService.this) {
-                    switch (mState) {
-                        case STATE_LISTEN:
-                        case STATE_CONNECTING:
-                            // Situation normal. Start the connected thread.
-                            connected(socket, socket.getRemoteDevice());
-                            break;
-                        case STATE_NONE:
-                        case STATE_CONNECTED:
-                            // Either not ready or already connected. Terminat new socket
-                            try {
-                                socket.close();
-                            } catch (IOException e) {
-
-                            }
-                            break;
+                    if (acceptThread == this) {
+                        switch (mState) {
+                            case STATE_LISTEN:
+                            case STATE_CONNECTING:
+                                // Situation normal. Start the connected thread, which cancels us.
+                                connected(socket, false);
+                                return;
+                        }
                     }
                 }
+                // Either not ready, already connected or cancelled. Terminate new socket
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    FlightRecorder.error(FlightRecorder.ERR_CLOSE_ACCEPTED);
+                }
             }
         }
 
         public void cancel() {
+            if (serverSocket == null) {
+                return;
+            }
             try {
-                bluetoothServerSocket.close();
+                serverSocket.close();
             } catch (IOException e) {
-
+                FlightRecorder.error(FlightRecorder.ERR_CLOSE_SERVER);
             }
         }
     }
 
     private class ConnectThread extends Thread {
-        private final BluetoothSocket bluetoothSocket;
-        private final BluetoothDevice bluetoothDevice;
+        private final ChatTransport.Connection socket;
 
-        public ConnectThread(BluetoothDevice bluetoothDevice) {
-            this.bluetoothDevice = bluetoothDevice;
-            BluetoothSocket tmp = null;
-            // Get a BluetoothSocket for a connection with the given BluetoothDevice
+        public ConnectThread(String address) {
+            ChatTransport.Connection tmp = null;
+            // Get a socket for a connection with the given device
             try {
-                tmp = bluetoothDevice.createRfcommSocketToServiceRecord(MY_UUID);
+                tmp = transport.createConnection(address);
             } catch (IOException e) {
-
+                FlightRecorder.error(FlightRecorder.ERR_CREATE_SOCKET);
             }
-            bluetoothSocket = tmp;
+            socket = tmp;
         }
 
         public void run() {
             setName("ConnectThread");
             // Always cancel a discovery because it will slow down a connection
-            bluetoothAdapter.cancelDiscovery();
-            // Make a connection to the BluetoothSocket
+            transport.cancelDiscovery();
+            // Make a connection to the socket
+            FlightRecorder.record(FlightRecorder.EV_CONNECT, 0);
             try {
-                bluetoothSocket.connect();
+                if (socket == null) {
+                    throw new IOException("No socket");
+                }
+                socket.connect();
+                FlightRecorder.record(FlightRecorder.EV_CONNECTED, 0);
             } catch (IOException e) {
-                connectionFailed();
+                FlightRecorder.error(FlightRecorder.ERR_CONNECT);
                 // Close the socket
-                try {
-                    bluetoothSocket.close();
-                } catch (IOException e2) {
-
+                cancel();
+                synchronized (BluetoothChatService.this) {
+                    // If we were cancelled whoever did it has moved the state on already
+                    if (connectThread == this) {
+                        connectThread = null;
+                        connectionFailed();
+                    }
                 }
-
-                // Restart the service to restart listening mode
-                BluetoothChatService.this.start();
                 return;
             }
-            // Reset the ConnectThread because we're done
             synchronized (BluetoothChatService.this) {
+                if (connectThread != this) {
+                    // Cancelled while connecting, nobody wants this connection anymore
+                    cancel();
+                    return;
+                }
+                // Reset the ConnectThread because we're done
                 connectThread = null;
+                // Start the connected thread
+                connected(socket, true);
             }
-
-            // Start the connected thread
-            connected(bluetoothSocket, bluetoothDevice);
         }
 
         public void cancel() {
+            if (socket == null) {
+                return;
+            }
             try {
-                bluetoothSocket.close();
+                socket.close();
             } catch (IOException e) {
-
+                FlightRecorder.error(FlightRecorder.ERR_CLOSE_SOCKET);
             }
         }
     }
@@ -352,60 +640,335 @@ public class BluetoothChatService {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        BluetoothSocket bluetoothSocket;
+    private class ConnectedThread extends Thread implements FrameReceiver.ReplySink {
+        ChatTransport.Connection socket;
         InputStream inputStream;
         OutputStream outputStream;
-
-        public ConnectedThread(BluetoothSocket socket) {
-            bluetoothSocket = socket;
+        // Only the writer writes to the socket; everyone else queues frames for it. The reader
+        // then never blocks on a full link, so two devices with a lot to send each other keep
+        // draining each other's writes instead of deadlocking, and the UI thread never waits on
+        // the link either.
+        private final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                setName("ConnectedWriter");
+                writeLoop();
+            }
+        };
+        // Guards what is waiting for the writer. Never held while writing to the socket or reading
+        // chunks from disk, so the UI thread can always take it.
+        private final Object writeLock = new Object();
+        private final FlowControl flow = new FlowControl(ChatProtocol.RECEIVE_WINDOW, false);
+        // Frames ready to go out, in order
+        private final ByteArrayOutputStream queued = new ByteArrayOutputStream();
+        private int queuedFrames;
+        // Credited frames waiting, in order, for the peer to grant more credit
+        private final ArrayDeque<byte[]> held = new ArrayDeque<>();
+        private int heldBytes;
+        // Credit the UI Activity has given back and we haven't written yet
+        private int pendingGrant;
+        // The peer granted credit or asked for chunks since the writer last looked
+        private boolean pendingSend;
+        // Messages were added to the outbox since the writer last looked
+        private boolean outboxWaiting;
+        private boolean closed;
+        private final boolean initiator;
+        private final FrameReceiver receiver;
+        private final AttachmentTransfer attachments;
+        private WireCapture capture;
+
+        public ConnectedThread(ChatTransport.Connection socket, String remoteName, boolean initiator) {
+            this.socket = socket;
+            this.initiator = initiator;
+            attachments = new AttachmentTransfer(chunkStore, new File(filesDir, "attachments"));
+            receiver = new FrameReceiver(history, attachments, mHandler, remoteName, this, flow);
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the socket input and output streams
             try {
                 tmpIn = socket.getInputStream();
                 tmpOut = socket.getOutputStream();
             } catch (IOException e) {
+                FlightRecorder.error(FlightRecorder.ERR_STREAMS);
+            }
 
+            // Tee both directions into a capture file if asked to
+            if (captureEnabled && tmpIn != null && tmpOut != null) {
+                try {
+                    capture = new WireCapture(new File(filesDir, "wire-" + System.currentTimeMillis() + ".cap"));
+                    tmpIn = capture.wrap(tmpIn);
+                    tmpOut = capture.wrap(tmpOut);
+                } catch (IOException e) {
+                    FlightRecorder.error(FlightRecorder.ERR_CAPTURE);
+                }
             }
             inputStream = tmpIn;
             outputStream = tmpOut;
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-            // Keep listening to the InputSsstream while connected
-            while (true) {
+        private void closeCapture() {
+            if (capture != null) {
                 try {
-                    // Read from the InputStream
-                    bytes = inputStream.read(buffer);
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
+                    capture.close();
                 } catch (IOException e) {
-                    connectionLost();
-                    break;
+                    FlightRecorder.error(FlightRecorder.ERR_CAPTURE);
                 }
             }
         }
 
-        public void write(byte[] buffer) {
+        public void run() {
+            setName("ConnectedThread");
             try {
-                outputStream.write(buffer);
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+                if (inputStream == null || outputStream == null) {
+                    throw new IOException("No streams");
+                }
+                writer.start();
+                // Send the backlog that was queued while we were not connected
+                flushOutbox();
+                // Then catch up on whatever the other side heard while we were apart
+                if (initiator) {
+                    receiver.startSync();
+                }
+                // Keep listening to the InputStream while connected
+                receiver.receive(inputStream);
+                throw new EOFException("Connection closed by the remote device");
             } catch (IOException e) {
+                FlightRecorder.error(FlightRecorder.ERR_READ);
+                // Close the socket
+                cancel();
+                synchronized (BluetoothChatService.this) {
+                    // If we were cancelled whoever did it has moved the state on already
+                    if (connectedThread == this) {
+                        connectedThread = null;
+                        connectionLost();
+                    }
+                }
+            }
+        }
 
+        /**
+         * Queue a run of frames for the writer. Frames that need credit we don't have are held
+         * back, in order, until the peer grants more. Never blocks on the link.
+         *
+         * @throws IOException if more than MAX_UNSENT_BYTES would be waiting for the writer
+         */
+        @Override
+        public void writeFrames(ByteArrayOutputStream frames) throws IOException {
+            if (frames.size() == 0) {
+                return;
+            }
+            if (outputStream == null) {
+                throw new IOException("No output stream");
+            }
+            byte[] bytes = frames.toByteArray();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            synchronized (writeLock) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (queued.size() + heldBytes + bytes.length > MAX_UNSENT_BYTES) {
+                    throw new IOException("Too much waiting to be sent");
+                }
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int type = bytes[offset] & 0xFF;
+                    int size = ChatProtocol.HEADER_SIZE + buffer.getInt(offset + 1);
+                    if (FlowControl.isCredited(type) && (!held.isEmpty() || !flow.tryAcquire(size))) {
+                        held.addLast(Arrays.copyOfRange(bytes, offset, offset + size));
+                        heldBytes += size;
+                    } else {
+                        queued.write(bytes, offset, size);
+                        queuedFrames++;
+                    }
+                    offset += size;
+                }
+                writeLock.notify();
             }
         }
 
-        public void cancel() {
+        /**
+         * Have the writer send what was waiting for credit: held frames first, then chunks the
+         * peer asked for, then the outbox.
+         */
+        @Override
+        public void sendPending() {
+            synchronized (writeLock) {
+                pendingSend = true;
+                writeLock.notify();
+            }
+        }
+
+        /**
+         * Queue credit for the writer to give back. Never blocks, the UI thread calls this.
+         */
+        @Override
+        public void sendCredit(int bytes) {
+            synchronized (writeLock) {
+                // Grants add up, so several can go out as one CREDIT frame
+                pendingGrant += bytes;
+                writeLock.notify();
+            }
+        }
+
+        /**
+         * Have the writer send everything queued in the outbox. Never blocks on the link.
+         */
+        public void flushOutbox() {
+            synchronized (writeLock) {
+                outboxWaiting = true;
+                writeLock.notify();
+            }
+        }
+
+        public void offerAttachment(String name, InputStream data) throws IOException {
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            attachments.offer(ChatProtocol.newMessageId(), name, data, new DataOutputStream(manifest));
+            writeFrames(manifest);
+        }
+
+        // Write whatever is queued until the connection closes. A failed write closes the socket,
+        // so the reader notices and reports the connection lost.
+        private void writeLoop() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream frames = new DataOutputStream(bytes);
             try {
-                bluetoothSocket.close();
+                while (true) {
+                    boolean chunksNow = false;
+                    boolean outboxNow;
+                    int count;
+                    bytes.reset();
+                    synchronized (writeLock) {
+                        while (!closed && queued.size() == 0 && pendingGrant == 0 && !pendingSend && !outboxWaiting) {
+                            writeLock.wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        FlightRecorder.record(FlightRecorder.EV_QUEUE, held.size(), queued.size());
+                        count = queuedFrames;
+                        if (pendingGrant > 0) {
+                            ChatProtocol.writeCreditFrame(frames, pendingGrant);
+                            pendingGrant = 0;
+                            count++;
+                        }
+                        queued.writeTo(bytes);
+                        queued.reset();
+                        queuedFrames = 0;
+                        if (pendingSend) {
+                            pendingSend = false;
+                            count += takeHeld(frames);
+                            // Requested chunks only go once the held frames have
+                            chunksNow = held.isEmpty();
+                            // More credit may let more of the outbox go too
+                            outboxWaiting = true;
+                        }
+                        outboxNow = outboxWaiting;
+                        outboxWaiting = false;
+                    }
+                    if (bytes.size() > 0) {
+                        bytes.writeTo(outputStream);
+                        outputStream.flush();
+                        FlightRecorder.record(FlightRecorder.EV_WRITE, count, bytes.size());
+                    }
+                    if (chunksNow) {
+                        writeChunks();
+                    }
+                    if (outboxNow) {
+                        writeOutbox();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Only cancel() stops us, and it says so with closed
             } catch (IOException e) {
+                FlightRecorder.error(FlightRecorder.ERR_WRITE);
+                cancel();
+            }
+        }
+
+        // Take the held frames the peer has given us credit for. Called with writeLock held.
+        private int takeHeld(DataOutputStream out) throws IOException {
+            int count = 0;
+            while (!held.isEmpty() && flow.tryAcquire(held.peekFirst().length)) {
+                byte[] frame = held.removeFirst();
+                heldBytes -= frame.length;
+                out.write(frame);
+                count++;
+            }
+            return count;
+        }
+
+        // Write the chunks the peer asked for, as far as its credit goes. They are read from the
+        // chunk store, so this runs without writeLock and the UI thread's sendCredit() never waits
+        // on the disk. Runs on the writer only.
+        private void writeChunks() throws IOException {
+            FlightRecorder.record(FlightRecorder.EV_REQUESTS, attachments.requestedCount());
+            int count = 0;
+            int bytes = 0;
+            byte[] chunk;
+            while ((chunk = attachments.peekChunkFrame()) != null && flow.tryAcquire(chunk.length)) {
+                outputStream.write(chunk);
+                attachments.chunkSent();
+                count++;
+                bytes += chunk.length;
+            }
+            if (count > 0) {
+                outputStream.flush();
+                FlightRecorder.record(FlightRecorder.EV_WRITE, count, bytes);
+            }
+        }
 
+        /**
+         * Write everything queued in the outbox, oldest first, packing as many messages as fit into
+         * each write. A message leaves the outbox only after the write that carried it succeeded;
+         * if the connection drops mid-flush the rest is sent again on the next connection and the
+         * peer drops any copies it already has by message id. Messages the peer hasn't given us
+         * credit for stay in the outbox until it grants more. Runs on the writer only.
+         */
+        private void writeOutbox() throws IOException {
+            synchronized (outboxLock) {
+                FlightRecorder.record(FlightRecorder.EV_OUTBOX, outbox.size());
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(FLUSH_BATCH_SIZE);
+                DataOutputStream frames = new DataOutputStream(bytes);
+                while (true) {
+                    List<MessageOutbox.Entry> batch = outbox.peekBatch(Math.min(FLUSH_BATCH_SIZE, flow.available()));
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    bytes.reset();
+                    for (MessageOutbox.Entry entry : batch) {
+                        ChatProtocol.writeTextFrame(frames, entry.id, entry.text);
+                    }
+                    // A single message can come back larger than the credit we asked for
+                    if (!flow.tryAcquire(bytes.size())) {
+                        break;
+                    }
+                    bytes.writeTo(outputStream);
+                    outputStream.flush();
+                    FlightRecorder.record(FlightRecorder.EV_WRITE, batch.size(), bytes.size());
+                    // Record the sent messages and share them back to the UI Activity. One sent
+                    // again after a connection dropped before we could remove it is there already.
+                    for (MessageOutbox.Entry entry : batch) {
+                        if (history.add(entry.id, transport.getLocalName(), entry.text)) {
+                            mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, entry).sendToTarget();
+                        }
+                    }
+                    outbox.remove(batch.size());
+                }
+            }
+        }
+
+        public void cancel() {
+            synchronized (writeLock) {
+                closed = true;
+                writeLock.notify();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                FlightRecorder.error(FlightRecorder.ERR_CLOSE_SOCKET);
             }
+            closeCapture();
         }
     }
 }
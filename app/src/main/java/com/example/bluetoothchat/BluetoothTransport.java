@@ -0,0 +1,123 @@
+package com.example.bluetoothchat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+// ChatTransport over Bluetooth RFCOMM, what the app runs on.
+class BluetoothTransport implements ChatTransport {
+
+    // Name for the SDP record when creating server socket
+    private static final String NAME = "BluetoothChat";
+
+    /*
+    A UUID (Universally Unique IDentifier) is 128 bits long, and can guarantee
+    uniqueness across space and time.  UUIDs were originally used in the
+    Apollo Network Computing System and later in the Open Software
+    Foundation's (OSF) Distributed Computing Environment (DCE), and then
+    in Microsoft Windows platforms.
+
+        The formal definition of the UUID string representation is provided by the following ABNF [7]:
+
+          UUID                   = time-low "-" time-mid "-"
+                                   time-high-and-version "-"
+                                   clock-seq-and-reserved
+                                   clock-seq-low "-" node
+          time-low               = 4hexOctet
+          time-mid               = 2hexOctet
+          time-high-and-version  = 2hexOctet
+          clock-seq-and-reserved = hexOctet
+          clock-seq-low          = hexOctet
+          node                   = 6hexOctet
+          hexOctet               = hexDigit hexDigit
+          hexDigit =
+                "0" / "1" / "2" / "3" / "4" / "5" / "6" / "7" / "8" / "9" /
+                "a" / "b" / "c" / "d" / "e" / "f" /
+                "A" / "B" / "C" / "D" / "E" / "F"
+
+       The following is an example of the string representation of a UUID as
+       a URN:
+
+       urn:uuid:f81d4fae-7dec-11d0-a765-00a0c91e6bf6
+
+       See: https://www.ietf.org/rfc/rfc4122.txt for more detail
+    */
+
+    // UUID for this application
+    private static final UUID MY_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200-c9a66");
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    BluetoothTransport(BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        final BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(NAME, MY_UUID);
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                return new RfcommConnection(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection createConnection(String address) throws IOException {
+        return new RfcommConnection(bluetoothAdapter.getRemoteDevice(address).createRfcommSocketToServiceRecord(MY_UUID));
+    }
+
+    @Override
+    public void cancelDiscovery() {
+        bluetoothAdapter.cancelDiscovery();
+    }
+
+    @Override
+    public String getLocalName() {
+        return bluetoothAdapter.getName();
+    }
+
+    private static class RfcommConnection implements Connection {
+        private final BluetoothSocket socket;
+
+        RfcommConnection(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return socket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
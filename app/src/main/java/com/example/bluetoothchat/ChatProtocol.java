@@ -0,0 +1,118 @@
+package com.example.bluetoothchat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+// Wire format shared by both ends of a chat connection. Everything sent over the socket is a
+// frame:
+//
+//   [type: 1 byte][body length: 4 bytes][body]
+//
+// A TEXT frame carries a single chat message:
+//
+//   [message id: 8 bytes][UTF-8 text]
+//
+// Message ids are assigned once, when the message is first queued, and never change. A peer that
+// receives the same id twice (for example because a flush was interrupted and retried after a
+// reconnect) simply drops the second copy.
+//
+// The SYNC_RANGES, SYNC_WANT and HISTORY frames reconcile message history after a connection is
+// made, see HistorySync.
+//
+// The MANIFEST, CHUNK_REQUEST, CHUNK and CHUNK_MISSING frames carry attachments, see
+// AttachmentTransfer.
+//
+// A CREDIT frame gives the peer back credit for TEXT, HISTORY and CHUNK frames we have consumed,
+// see FlowControl:
+//
+//   [bytes: 4 bytes]
+final class ChatProtocol {
+
+    // Frame types
+    static final int FRAME_TEXT = 1;
+    static final int FRAME_SYNC_RANGES = 2;
+    static final int FRAME_SYNC_WANT = 3;
+    static final int FRAME_HISTORY = 4;
+    static final int FRAME_CREDIT = 5;
+    static final int FRAME_MANIFEST = 6;
+    static final int FRAME_CHUNK_REQUEST = 7;
+    static final int FRAME_CHUNK = 8;
+    static final int FRAME_CHUNK_MISSING = 9;
+
+    static final int HEADER_SIZE = 5;
+    static final int TEXT_HEADER_SIZE = 8;
+
+    // Upper bound for a single frame body, so a corrupt length can't make us allocate the heap away
+    static final int MAX_BODY_SIZE = 64 * 1024;
+
+    // Longest author name kept with a message, in chars. writeUTF takes at most 3 bytes a char.
+    static final int MAX_AUTHOR_LENGTH = 64;
+
+    // Bytes a message takes in a HISTORY frame on top of its text: id, author and text length
+    static final int HISTORY_ENTRY_OVERHEAD = 8 + 2 + 3 * MAX_AUTHOR_LENGTH + 4;
+
+    // Longest message text, so it fits in a TEXT frame now and in a HISTORY frame when it is
+    // synced later
+    static final int MAX_TEXT_SIZE = MAX_BODY_SIZE - HISTORY_ENTRY_OVERHEAD;
+
+    // Bytes of TEXT and HISTORY frames either side may have in flight. Must hold the largest frame.
+    static final int RECEIVE_WINDOW = 2 * MAX_BODY_SIZE;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ChatProtocol() {
+    }
+
+    // Last id handed out on this device
+    private static long lastMessageId;
+
+    /**
+     * Create a new message id. The high bits are the wall clock time in milliseconds and the low
+     * 20 bits are random, so ids from different devices hardly ever collide and sort roughly by
+     * creation time. Ids from this device always go up, so two messages created in the same
+     * millisecond can't share one.
+     */
+    static synchronized long newMessageId() {
+        long id = (System.currentTimeMillis() << 20) | (RANDOM.nextInt() & 0xFFFFF);
+        lastMessageId = Math.max(lastMessageId + 1, id);
+        return lastMessageId;
+    }
+
+    static int textFrameSize(byte[] text) {
+        return HEADER_SIZE + TEXT_HEADER_SIZE + text.length;
+    }
+
+    static void writeTextFrame(DataOutputStream out, long id, byte[] text) throws IOException {
+        out.writeByte(FRAME_TEXT);
+        out.writeInt(TEXT_HEADER_SIZE + text.length);
+        out.writeLong(id);
+        out.write(text);
+    }
+
+    static void writeCreditFrame(DataOutputStream out, int bytes) throws IOException {
+        out.writeByte(FRAME_CREDIT);
+        out.writeInt(4);
+        out.writeInt(bytes);
+    }
+
+    /**
+     * Read the header of the next frame and return its type. The body length is left in
+     * lengthOut[0]. Blocks until a full header has arrived.
+     *
+     * @return The frame type, or -1 if the stream ended cleanly before the frame began
+     */
+    static int readHeader(DataInputStream in, int[] lengthOut) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return -1;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BODY_SIZE) {
+            throw new IOException("Bad frame length " + length);
+        }
+        lengthOut[0] = length;
+        return type;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// The link the chat runs over. BluetoothChatService only reaches other devices through this, so
+// the app can plug in Bluetooth RFCOMM (BluetoothTransport) and the tests a simulated link.
+interface ChatTransport {
+
+    // A socket listening for incoming connections
+    interface Server {
+        // Blocks until a connection comes in or the server is closed
+        Connection accept() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    // One end of a connection between two devices
+    interface Connection {
+        // Blocks until the connection is made, fails or the connection is closed
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteName();
+
+        void close() throws IOException;
+    }
+
+    Server listen() throws IOException;
+
+    Connection createConnection(String address) throws IOException;
+
+    // Stop anything that would slow down making a connection
+    void cancelDiscovery();
+
+    String getLocalName();
+}
@@ -0,0 +1,134 @@
+package com.example.bluetoothchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Attachment chunks we have sent or received, one file per chunk named after its SHA-256, kept
+// under maxBytes by dropping the least recently used chunks. The use order survives restarts
+// through the files' modification times.
+class ChunkStore {
+
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes;
+    // Chunk name to size, least recently used first
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    ChunkStore(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        load();
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return index.containsKey(hex(hash));
+    }
+
+    /**
+     * Return the chunk with this hash, or null if we don't have it.
+     */
+    public synchronized byte[] get(byte[] hash) {
+        String name = hex(hash);
+        Long size = index.get(name);
+        if (size == null) {
+            return null;
+        }
+        File file = new File(dir, name);
+        byte[] data = new byte[(int) (long) size];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Chunk " + name + " is short");
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            forget(name);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    /**
+     * Store a chunk, evicting the least recently used ones if we go over the size limit.
+     */
+    public synchronized void put(byte[] hash, byte[] data) throws IOException {
+        String name = hex(hash);
+        if (index.containsKey(name)) {
+            index.get(name);
+            new File(dir, name).setLastModified(System.currentTimeMillis());
+            return;
+        }
+        // Write to a temporary file first so a half written chunk is never taken for a whole one
+        File tmp = new File(dir, name + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        }
+        if (!tmp.renameTo(new File(dir, name))) {
+            tmp.delete();
+            throw new IOException("Unable to store chunk " + name);
+        }
+        index.put(name, (long) data.length);
+        totalBytes += data.length;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(dir, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private void forget(String name) {
+        Long size = index.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, name).delete();
+    }
+
+    private void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            index.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
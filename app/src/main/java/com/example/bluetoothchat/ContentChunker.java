@@ -0,0 +1,82 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// Splits a stream into content defined chunks. A rolling Gear hash runs over the data and a chunk
+// ends wherever the top MASK_BITS bits of the hash are all zero, so boundaries depend only on the
+// bytes just before them. Editing one part of a file then only changes the chunks around the edit,
+// and the same content always cuts into the same chunks, whoever sends it.
+class ContentChunker {
+
+    static final int MIN_SIZE = 2 * 1024;
+    static final int MAX_SIZE = 32 * 1024;
+    // Gives chunks of about 8 KB on average past MIN_SIZE
+    private static final int MASK_BITS = 13;
+
+    static final int HASH_SIZE = 32;
+
+    // Fixed table, every device has to cut the same way
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long z = 0x5DEECE66DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            z += 0x9e3779b97f4a7c15L;
+            GEAR[i] = MessageHistory.hash(z);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[MAX_SIZE];
+    private int buffered;
+    private boolean eof;
+
+    ContentChunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Return the next chunk, or null once the stream is used up.
+     */
+    public byte[] next() throws IOException {
+        while (!eof && buffered < MAX_SIZE) {
+            int n = in.read(buffer, buffered, MAX_SIZE - buffered);
+            if (n < 0) {
+                eof = true;
+            } else {
+                buffered += n;
+            }
+        }
+        if (buffered == 0) {
+            return null;
+        }
+
+        int cut = buffered;
+        long h = 0;
+        for (int i = MIN_SIZE; i < buffered; i++) {
+            h = (h << 1) + GEAR[buffer[i] & 0xFF];
+            if ((h >>> (64 - MASK_BITS)) == 0) {
+                cut = i + 1;
+                break;
+            }
+        }
+
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+        buffered -= cut;
+        return chunk;
+    }
+
+    static byte[] hash(byte[] chunk) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(chunk);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Always-on record of the last CAPACITY connection events: state changes, accept and connect
+// attempts, every frame read or written with its size, queue depths and every IOException we
+// swallow. Recording is lock free and allocation free, one atomic increment and three ordered
+// stores, so it can stay on in the read and write paths. dump() writes the buffer to a file that
+// FlightRecorderDecoder turns back into a timeline.
+//
+// Each event is three longs in a ring: the sequence number plus one (0 means never written), the
+// System.nanoTime() it happened at and the packed event [type: 8 bits][aux: 24 bits][arg: 32 bits].
+// A writer stores the sequence last, so a reader that sees the same sequence before and after
+// reading an event knows it wasn't overwritten halfway.
+final class FlightRecorder {
+
+    // Event types. aux and arg are described next to each one.
+    static final int EV_STATE = 1;              // arg: new state
+    static final int EV_LISTEN = 2;             // server socket opened
+    static final int EV_ACCEPTED = 3;           // incoming connection accepted
+    static final int EV_CONNECT = 4;            // outgoing connection attempt started
+    static final int EV_CONNECTED = 5;          // outgoing connection attempt succeeded
+    static final int EV_READ = 6;               // aux: frame type, arg: body bytes
+    static final int EV_WRITE = 7;              // aux: frames in the write, arg: bytes
+    static final int EV_OUTBOX = 8;             // arg: messages waiting in the outbox
+    static final int EV_ERROR = 9;              // aux: one of the ERR_ sites below
+    static final int EV_QUEUE = 10;             // aux: frames held for credit, arg: bytes queued for the writer
+    static final int EV_REQUESTS = 11;          // arg: chunk requests from the peer not sent yet
+
+    static final String[] EVENT_NAMES = {
+            "?", "STATE", "LISTEN", "ACCEPTED", "CONNECT", "CONNECTED", "READ", "WRITE", "OUTBOX", "ERROR",
+            "QUEUE", "REQUESTS"
+    };
+
+    // Where an IOException was caught
+    static final int ERR_LISTEN = 1;
+    static final int ERR_ACCEPT = 2;
+    static final int ERR_CLOSE_ACCEPTED = 3;
+    static final int ERR_CLOSE_SERVER = 4;
+    static final int ERR_CREATE_SOCKET = 5;
+    static final int ERR_CONNECT = 6;
+    static final int ERR_CLOSE_SOCKET = 7;
+    static final int ERR_STREAMS = 8;
+    static final int ERR_READ = 9;
+    static final int ERR_WRITE = 10;
+    static final int ERR_OUTBOX = 11;
+    static final int ERR_CAPTURE = 12;
+
+    static final String[] ERROR_NAMES = {
+            "?", "listen", "accept", "close accepted socket", "close server socket", "create socket",
+            "connect", "close socket", "get streams", "read", "write", "outbox", "capture"
+    };
+
+    // Dump file layout: header then up to CAPACITY events of [seq][nanos][packed event]
+    static final int MAGIC = 0x42544652;        // "BTFR"
+    static final int VERSION = 1;
+
+    // Must be a power of two
+    static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicLongArray ring = new AtomicLongArray(CAPACITY * 3);
+    private static boolean crashDumpInstalled;
+
+    private FlightRecorder() {
+    }
+
+    static void record(int type, int arg) {
+        record(type, 0, arg);
+    }
+
+    static void record(int type, int aux, int arg) {
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq & MASK) * 3;
+        // Mark the slot as being written before touching the payload
+        ring.lazySet(slot, 0);
+        ring.lazySet(slot + 1, System.nanoTime());
+        ring.lazySet(slot + 2, pack(type, aux, arg));
+        ring.lazySet(slot, seq + 1);
+    }
+
+    /**
+     * Dump to a new flight-crash-*.bin file in dir if the process dies of an uncaught exception,
+     * before handing the exception on to the handler that was there before. Only the first call
+     * installs anything.
+     */
+    static synchronized void installCrashDump(final File dir) {
+        if (crashDumpInstalled) {
+            return;
+        }
+        crashDumpInstalled = true;
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable e) {
+                try {
+                    dump(new File(dir, "flight-crash-" + System.currentTimeMillis() + ".bin"));
+                } catch (IOException dumpFailed) {
+                    // Going down anyway, the original exception is what matters
+                }
+                if (previous != null) {
+                    previous.uncaughtException(thread, e);
+                }
+            }
+        });
+    }
+
+    static void error(int site) {
+        record(EV_ERROR, site, 0);
+    }
+
+    static long pack(int type, int aux, int arg) {
+        return ((long) (type & 0xFF) << 56) | ((long) (aux & 0xFFFFFF) << 32) | (arg & 0xFFFFFFFFL);
+    }
+
+    static int type(long event) {
+        return (int) (event >>> 56);
+    }
+
+    static int aux(long event) {
+        return (int) (event >>> 32) & 0xFFFFFF;
+    }
+
+    static int arg(long event) {
+        return (int) event;
+    }
+
+    /**
+     * Write the events currently in the ring to a file, oldest first. Recording carries on while
+     * the dump runs; events overwritten in the meantime are left out.
+     *
+     * @return The number of events written
+     */
+    static int dump(File file) throws IOException {
+        long end = next.get();
+        long start = Math.max(0, end - CAPACITY);
+        long[] events = new long[(int) (end - start) * 3];
+        int count = 0;
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK) * 3;
+            long stamp = ring.get(slot);
+            long nanos = ring.get(slot + 1);
+            long event = ring.get(slot + 2);
+            if (stamp != seq + 1 || ring.get(slot) != stamp) {
+                continue;
+            }
+            events[count * 3] = seq;
+            events[count * 3 + 1] = nanos;
+            events[count * 3 + 2] = event;
+            count++;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // Lets the decoder turn nanoTime stamps into wall clock time
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(System.nanoTime());
+            out.writeInt(count);
+            for (int i = 0; i < count * 3; i++) {
+                out.writeLong(events[i]);
+            }
+        }
+        return count;
+    }
+}
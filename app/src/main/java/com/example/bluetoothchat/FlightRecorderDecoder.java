@@ -0,0 +1,86 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// Prints a FlightRecorder dump as a timeline. Runs on any JVM, pull the dump off the phone with
+// adb and run:
+//
+//   java com.example.bluetoothchat.FlightRecorderDecoder flight-1234.bin
+public class FlightRecorderDecoder {
+
+    private static final String[] STATE_NAMES = { "NONE", "LISTEN", "CONNECTING", "CONNECTED" };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: FlightRecorderDecoder <dump file>");
+            System.exit(2);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])))) {
+            decode(in, System.out);
+        }
+    }
+
+    static void decode(DataInputStream in, PrintStream out) throws IOException {
+        if (in.readInt() != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight recorder dump");
+        }
+        int version = in.readInt();
+        if (version != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported dump version " + version);
+        }
+        long dumpMillis = in.readLong();
+        long dumpNanos = in.readLong();
+        int count = in.readInt();
+
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        long firstNanos = 0;
+        long lastSeq = -1;
+        for (int i = 0; i < count; i++) {
+            long seq = in.readLong();
+            long nanos = in.readLong();
+            long event = in.readLong();
+            if (i == 0) {
+                firstNanos = nanos;
+            } else if (seq != lastSeq + 1) {
+                out.println("    ... " + (seq - lastSeq - 1) + " events lost");
+            }
+            lastSeq = seq;
+
+            long wallMillis = dumpMillis - (dumpNanos - nanos) / 1000000;
+            out.printf(Locale.US, "%s  +%10.3f ms  %s%n", format.format(new Date(wallMillis)),
+                    (nanos - firstNanos) / 1e6, describe(event));
+        }
+    }
+
+    static String describe(long event) {
+        int type = FlightRecorder.type(event);
+        int aux = FlightRecorder.aux(event);
+        int arg = FlightRecorder.arg(event);
+        String name = type < FlightRecorder.EVENT_NAMES.length ? FlightRecorder.EVENT_NAMES[type] : "type " + type;
+        switch (type) {
+            case FlightRecorder.EV_STATE:
+                return name + " " + (arg >= 0 && arg < STATE_NAMES.length ? STATE_NAMES[arg] : String.valueOf(arg));
+            case FlightRecorder.EV_READ:
+                return name + " frame " + aux + ", " + arg + " bytes";
+            case FlightRecorder.EV_WRITE:
+                return name + " " + aux + " frames, " + arg + " bytes";
+            case FlightRecorder.EV_OUTBOX:
+                return name + " " + arg + " queued";
+            case FlightRecorder.EV_QUEUE:
+                return name + " " + arg + " bytes queued, " + aux + " frames held";
+            case FlightRecorder.EV_REQUESTS:
+                return name + " " + arg + " chunks requested";
+            case FlightRecorder.EV_ERROR:
+                return name + " " + (aux < FlightRecorder.ERROR_NAMES.length ? FlightRecorder.ERROR_NAMES[aux] : String.valueOf(aux));
+            default:
+                return name;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+
+// Credit based flow control for the frames that carry the bulk of the data or end up queued for
+// the UI Activity: TEXT and HISTORY, and the attachment MANIFEST, CHUNK and CHUNK_MISSING frames.
+// Everything else is small and handled on the connection's own thread as it arrives, and needs
+// none; the replies it makes us owe the peer are capped by the connection's writer instead.
+//
+// Each side may have at most window bytes of credited frames in flight. The sender spends credit
+// for every credited frame it writes and holds frames back once it runs out. The receiver counts a
+// frame as consumed only once the UI Activity has handled it, and gives the credit back with a
+// CREDIT frame when a quarter of the window has been consumed or everything received so far has
+// been. A peer that sends past its credit breaks the connection, so however fast it writes we never
+// have more than window bytes of its frames buffered.
+class FlowControl {
+
+    private final int window;
+    private final boolean replay;
+
+    // Send side
+    private int credit;
+
+    // Receive side
+    private int unconsumed;
+    private int ungranted;
+
+    /**
+     * @param window Bytes of credited frames allowed in flight in each direction
+     * @param replay true for a receiver fed by a replay rather than a live peer: received() waits
+     *               for the consumer instead of failing, and grants are ignored since nothing the
+     *               replay writes spends credit
+     */
+    FlowControl(int window, boolean replay) {
+        this.window = window;
+        this.replay = replay;
+        credit = window;
+    }
+
+    static boolean isCredited(int frameType) {
+        return frameType == ChatProtocol.FRAME_TEXT || frameType == ChatProtocol.FRAME_HISTORY
+                || frameType == ChatProtocol.FRAME_MANIFEST || frameType == ChatProtocol.FRAME_CHUNK
+                || frameType == ChatProtocol.FRAME_CHUNK_MISSING;
+    }
+
+    /**
+     * Spend credit for a frame about to be written.
+     *
+     * @return false if there isn't enough credit and the frame has to wait
+     */
+    public synchronized boolean tryAcquire(int bytes) {
+        if (bytes > credit) {
+            return false;
+        }
+        credit -= bytes;
+        return true;
+    }
+
+    public synchronized int available() {
+        return credit;
+    }
+
+    /**
+     * The peer gave credit back.
+     */
+    public synchronized void grant(int bytes) throws IOException {
+        if (bytes < 0 || (!replay && credit + bytes > window)) {
+            throw new IOException("Bad credit grant " + bytes);
+        }
+        if (!replay) {
+            credit += bytes;
+        }
+    }
+
+    /**
+     * Account for a credited frame that has just been read.
+     */
+    public synchronized void received(int bytes) throws IOException {
+        while (unconsumed + ungranted + bytes > window) {
+            if (!replay) {
+                throw new IOException("Peer overran its credit");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the consumer");
+            }
+        }
+        unconsumed += bytes;
+    }
+
+    /**
+     * Account for a credited frame the consumer is done with.
+     *
+     * @return The credit to give back to the peer now, or 0 to wait for more
+     */
+    public synchronized int consumed(int bytes) {
+        unconsumed -= bytes;
+        ungranted += bytes;
+        notifyAll();
+        if (ungranted < window / 4 && unconsumed > 0) {
+            return 0;
+        }
+        int grant = ungranted;
+        ungranted = 0;
+        return grant;
+    }
+}
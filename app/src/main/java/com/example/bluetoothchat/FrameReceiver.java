@@ -0,0 +1,212 @@
+package com.example.bluetoothchat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// The receive side of a connection: reads frames off an input stream, acts on them and hands the
+// results to the UI Activity's Handler. It doesn't care where the bytes come from, so the same
+// code runs behind a live ConnectedThread and behind a WireReplay of a captured session.
+//
+// Frames that are handed to the UI are paid for with credit (see FlowControl). Their credit is
+// released by a Runnable posted right behind them, so it only comes back once the UI Activity's
+// Looper has worked its way through them. That Runnable runs on the UI thread, so it only does the
+// accounting and leaves writing the CREDIT frame to the ReplySink.
+class FrameReceiver {
+
+    // Where replies to sync frames and credit grants are written
+    interface ReplySink {
+        void writeFrames(ByteArrayOutputStream frames) throws IOException;
+
+        // The peer granted more credit or asked for chunks, send whatever is waiting
+        void sendPending() throws IOException;
+
+        // Give credit back to the peer. Called on the UI thread, so it must not block on the
+        // connection: the CREDIT frame is written later by a thread of the sink's own
+        void sendCredit(int bytes);
+    }
+
+    private final MessageHistory history;
+    private final HistorySync historySync;
+    private final AttachmentTransfer attachments;
+    private final Handler handler;
+    private final String remoteName;
+    private final ReplySink replies;
+    private final FlowControl flow;
+
+    FrameReceiver(MessageHistory history, AttachmentTransfer attachments, Handler handler, String remoteName,
+                  ReplySink replies, FlowControl flow) {
+        this.history = history;
+        this.attachments = attachments;
+        this.flow = flow;
+        this.historySync = new HistorySync(history);
+        this.handler = handler;
+        this.remoteName = remoteName;
+        this.replies = replies;
+    }
+
+    /**
+     * Open a history sync with the peer.
+     */
+    public void startSync() throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        historySync.start(new DataOutputStream(reply));
+        replies.writeFrames(reply);
+    }
+
+    /**
+     * Read and handle frames until the stream fails or ends. Returns if the stream ends between
+     * two frames; a stream that ends partway through a frame throws EOFException.
+     */
+    public void receive(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        int[] length = new int[1];
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream replyFrames = new DataOutputStream(reply);
+        while (true) {
+            // Read the next frame from the InputStream
+            int type = ChatProtocol.readHeader(in, length);
+            if (type < 0) {
+                return;
+            }
+            byte[] body = new byte[length[0]];
+            in.readFully(body);
+            FlightRecorder.record(FlightRecorder.EV_READ, type, body.length);
+            int frameSize = ChatProtocol.HEADER_SIZE + body.length;
+            if (FlowControl.isCredited(type)) {
+                flow.received(frameSize);
+            }
+            // Frame types we don't know are skipped so newer peers can still talk to us
+            switch (type) {
+                case ChatProtocol.FRAME_TEXT:
+                    receiveText(body, frameSize);
+                    break;
+                case ChatProtocol.FRAME_SYNC_RANGES:
+                    reply.reset();
+                    historySync.onRanges(body, replyFrames);
+                    replies.writeFrames(reply);
+                    break;
+                case ChatProtocol.FRAME_SYNC_WANT:
+                    reply.reset();
+                    historySync.onWant(body, replyFrames);
+                    replies.writeFrames(reply);
+                    break;
+                case ChatProtocol.FRAME_HISTORY:
+                    List<MessageHistory.Entry> added = historySync.onHistory(body);
+                    if (added.isEmpty()) {
+                        release(frameSize);
+                        break;
+                    }
+                    // Send the messages we were missing to the UI Activity
+                    handler.obtainMessage(BluetoothChat.MESSAGE_HISTORY, added).sendToTarget();
+                    releaseWhenHandled(frameSize);
+                    break;
+                case ChatProtocol.FRAME_CREDIT:
+                    if (body.length < 4) {
+                        throw new IOException("Short credit frame");
+                    }
+                    flow.grant(ByteBuffer.wrap(body).getInt());
+                    replies.sendPending();
+                    break;
+                case ChatProtocol.FRAME_MANIFEST:
+                    reply.reset();
+                    File have = attachments.onManifest(body, replyFrames);
+                    replies.writeFrames(reply);
+                    if (have == null) {
+                        release(frameSize);
+                        break;
+                    }
+                    handler.obtainMessage(BluetoothChat.MESSAGE_ATTACHMENT, have).sendToTarget();
+                    releaseWhenHandled(frameSize);
+                    break;
+                case ChatProtocol.FRAME_CHUNK_REQUEST:
+                    attachments.onRequest(body);
+                    replies.sendPending();
+                    break;
+                case ChatProtocol.FRAME_CHUNK_MISSING:
+                    String lost = attachments.onMissing(body);
+                    if (lost == null) {
+                        release(frameSize);
+                        break;
+                    }
+                    // Tell the UI Activity the attachment isn't coming
+                    Message msg = handler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
+                    Bundle bundle = new Bundle();
+                    bundle.putString(BluetoothChat.TOAST, "Attachment " + lost + " is no longer available");
+                    msg.setData(bundle);
+                    handler.sendMessage(msg);
+                    releaseWhenHandled(frameSize);
+                    break;
+                case ChatProtocol.FRAME_CHUNK:
+                    reply.reset();
+                    List<File> completed = attachments.onChunk(body, replyFrames);
+                    replies.writeFrames(reply);
+                    if (completed.isEmpty()) {
+                        // The chunk is on disk already, nothing waits on the UI
+                        release(frameSize);
+                        break;
+                    }
+                    for (File file : completed) {
+                        // Send the finished attachment to the UI Activity
+                        handler.obtainMessage(BluetoothChat.MESSAGE_ATTACHMENT, file).sendToTarget();
+                    }
+                    releaseWhenHandled(frameSize);
+                    break;
+            }
+        }
+    }
+
+    // Give the credit back once the UI Activity has handled everything posted so far
+    private void releaseWhenHandled(final int frameSize) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                int grant = flow.consumed(frameSize);
+                if (grant > 0) {
+                    replies.sendCredit(grant);
+                }
+            }
+        });
+    }
+
+    // Give the credit back for a frame this thread has finished with already
+    private void release(int frameSize) throws IOException {
+        int grant = flow.consumed(frameSize);
+        if (grant > 0) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(ChatProtocol.HEADER_SIZE + 4);
+            ChatProtocol.writeCreditFrame(new DataOutputStream(frame), grant);
+            replies.writeFrames(frame);
+        }
+    }
+
+    private void receiveText(byte[] body, int frameSize) throws IOException {
+        if (body.length < ChatProtocol.TEXT_HEADER_SIZE) {
+            throw new IOException("Short text frame");
+        }
+        // A longer message could never be passed on in a HISTORY frame
+        if (body.length - ChatProtocol.TEXT_HEADER_SIZE > ChatProtocol.MAX_TEXT_SIZE) {
+            throw new IOException("Text too long: " + (body.length - ChatProtocol.TEXT_HEADER_SIZE) + " bytes");
+        }
+        long id = ByteBuffer.wrap(body).getLong();
+        byte[] text = Arrays.copyOfRange(body, ChatProtocol.TEXT_HEADER_SIZE, body.length);
+        // Drop messages we already have, the sender retries anything it isn't sure went out
+        if (!history.add(id, remoteName, text)) {
+            release(frameSize);
+            return;
+        }
+        // Send the obtained bytes to the UI Activity
+        handler.obtainMessage(BluetoothChat.MESSAGE_READ, text.length, -1, text).sendToTarget();
+        releaseWhenHandled(frameSize);
+    }
+}
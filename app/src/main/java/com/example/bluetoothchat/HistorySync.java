@@ -0,0 +1,257 @@
+package com.example.bluetoothchat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reconciles the message history of two connected devices so both end up with every message either
+// of them has, without sending the whole history over the link.
+//
+// The id space is cut into ranges and each side describes a range by a fingerprint, the number of
+// ids in it plus an order independent hash of them. When a peer's fingerprint matches ours the
+// range is done. When it doesn't we either split our part of the range into SPLIT smaller ranges
+// and send their fingerprints back, or, once a range holds only a few ids, list the ids themselves.
+// The side that receives an id list pushes the messages the peer lacks and asks for the ones it
+// lacks. Ranges that are the same on both sides are dropped after one fingerprint, so the number of
+// round trips grows with the log of the history and the bytes sent grow with the size of the
+// difference.
+//
+// Frames (see ChatProtocol):
+//   SYNC_RANGES  repeated [lo: 8 bytes][hi: 8 bytes][mode: 1 byte] followed by either
+//                [count: 4 bytes][hash: 8 bytes] for a fingerprint or [n: 4 bytes][n ids] for ids
+//   SYNC_WANT    repeated [id: 8 bytes]
+//   HISTORY      repeated [id: 8 bytes][author][length: 4 bytes][text]
+class HistorySync {
+
+    // The whole id space, ranges are [lo, hi)
+    static final long FULL_LO = 0;
+    static final long FULL_HI = Long.MAX_VALUE;
+
+    private static final int MODE_FINGERPRINT = 0;
+    private static final int MODE_IDS = 1;
+
+    // A range with at most this many ids is listed instead of split further
+    private static final int IDS_THRESHOLD = 16;
+    // Number of sub ranges a mismatching range is split into
+    private static final int SPLIT = 8;
+    // Frames are cut at about this many body bytes so one reply can't hog the link
+    private static final int FRAME_LIMIT = 4 * 1024;
+
+    private final MessageHistory history;
+    private final long[] fingerprint = new long[2];
+
+    HistorySync(MessageHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Open a sync by sending the fingerprint of the whole history.
+     */
+    public void start(DataOutputStream out) throws IOException {
+        FrameWriter ranges = new FrameWriter(out, ChatProtocol.FRAME_SYNC_RANGES);
+        history.fingerprint(FULL_LO, FULL_HI, fingerprint);
+        writeFingerprint(ranges.data, FULL_LO, FULL_HI, (int) fingerprint[0], fingerprint[1]);
+        ranges.flush();
+    }
+
+    /**
+     * Handle a SYNC_RANGES frame from the peer and write our reply frames to out.
+     */
+    public void onRanges(byte[] body, DataOutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        FrameWriter ranges = new FrameWriter(out, ChatProtocol.FRAME_SYNC_RANGES);
+        FrameWriter pushes = new FrameWriter(out, ChatProtocol.FRAME_HISTORY);
+        FrameWriter wants = new FrameWriter(out, ChatProtocol.FRAME_SYNC_WANT);
+        while (in.available() > 0) {
+            long lo = in.readLong();
+            long hi = in.readLong();
+            int mode = in.readUnsignedByte();
+            if (mode == MODE_FINGERPRINT) {
+                int count = in.readInt();
+                long hash = in.readLong();
+                history.fingerprint(lo, hi, fingerprint);
+                if (fingerprint[0] == count && fingerprint[1] == hash) {
+                    continue;
+                }
+                long[] ids = history.ids(lo, hi);
+                if (ids.length <= IDS_THRESHOLD) {
+                    writeIds(ranges.data, lo, hi, ids);
+                } else {
+                    split(ranges, lo, hi, ids);
+                }
+                ranges.maybeFlush();
+            } else if (mode == MODE_IDS) {
+                int n = in.readInt();
+                if (n < 0 || n > body.length / 8) {
+                    throw new IOException("Bad id count " + n);
+                }
+                long[] theirs = new long[n];
+                for (int i = 0; i < n; i++) {
+                    theirs[i] = in.readLong();
+                }
+                diff(history.ids(lo, hi), theirs, pushes, wants);
+            } else {
+                throw new IOException("Bad sync mode " + mode);
+            }
+        }
+        ranges.flush();
+        pushes.flush();
+        wants.flush();
+    }
+
+    /**
+     * Handle a SYNC_WANT frame by sending the requested messages.
+     */
+    public void onWant(byte[] body, DataOutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        FrameWriter pushes = new FrameWriter(out, ChatProtocol.FRAME_HISTORY);
+        while (in.available() >= 8) {
+            MessageHistory.Entry entry = history.get(in.readLong());
+            if (entry != null) {
+                writeEntry(pushes, entry);
+            }
+        }
+        pushes.flush();
+    }
+
+    /**
+     * Handle a HISTORY frame by adding its messages to our history.
+     *
+     * @return The messages that were new to us
+     */
+    public List<MessageHistory.Entry> onHistory(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        List<MessageHistory.Entry> added = new ArrayList<>();
+        while (in.available() > 0) {
+            long id = in.readLong();
+            String author = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > in.available() || length > ChatProtocol.MAX_TEXT_SIZE) {
+                throw new IOException("Bad history entry length " + length);
+            }
+            byte[] text = new byte[length];
+            in.readFully(text);
+            if (history.add(id, author, text)) {
+                added.add(new MessageHistory.Entry(id, author, text));
+            }
+        }
+        return added;
+    }
+
+    // Cut [lo, hi) at every ids.length / SPLIT-th id and send the fingerprint of each piece
+    private void split(FrameWriter ranges, long lo, long hi, long[] ids) throws IOException {
+        int start = 0;
+        long from = lo;
+        for (int k = 1; k <= SPLIT; k++) {
+            int end = k == SPLIT ? ids.length : k * ids.length / SPLIT;
+            long to = k == SPLIT ? hi : ids[end];
+            long hash = 0;
+            for (int i = start; i < end; i++) {
+                hash += MessageHistory.hash(ids[i]);
+            }
+            writeFingerprint(ranges.data, from, to, end - start, hash);
+            start = end;
+            from = to;
+        }
+    }
+
+    // Both id lists are sorted. Push what only we have, ask for what only they have.
+    private void diff(long[] ours, long[] theirs, FrameWriter pushes, FrameWriter wants) throws IOException {
+        int i = 0;
+        int j = 0;
+        while (i < ours.length || j < theirs.length) {
+            if (j == theirs.length || (i < ours.length && ours[i] < theirs[j])) {
+                MessageHistory.Entry entry = history.get(ours[i++]);
+                if (entry != null) {
+                    writeEntry(pushes, entry);
+                }
+            } else if (i == ours.length || theirs[j] < ours[i]) {
+                wants.data.writeLong(theirs[j++]);
+                wants.maybeFlush();
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static void writeFingerprint(DataOutputStream data, long lo, long hi, int count, long hash) throws IOException {
+        data.writeLong(lo);
+        data.writeLong(hi);
+        data.writeByte(MODE_FINGERPRINT);
+        data.writeInt(count);
+        data.writeLong(hash);
+    }
+
+    private static void writeIds(DataOutputStream data, long lo, long hi, long[] ids) throws IOException {
+        data.writeLong(lo);
+        data.writeLong(hi);
+        data.writeByte(MODE_IDS);
+        data.writeInt(ids.length);
+        for (long id : ids) {
+            data.writeLong(id);
+        }
+    }
+
+    private static void writeEntry(FrameWriter pushes, MessageHistory.Entry entry) throws IOException {
+        int size = 8 + 2 + utfLength(entry.author) + 4 + entry.text.length;
+        // Start a new frame rather than let this entry push the body past MAX_BODY_SIZE
+        if (pushes.body.size() + size > ChatProtocol.MAX_BODY_SIZE) {
+            pushes.flush();
+        }
+        pushes.data.writeLong(entry.id);
+        pushes.data.writeUTF(entry.author);
+        pushes.data.writeInt(entry.text.length);
+        pushes.data.write(entry.text);
+        pushes.maybeFlush();
+    }
+
+    // Bytes writeUTF() takes for the string, less its 2 byte length
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    // Collects the body of one frame type and writes it out as one or more frames
+    private static class FrameWriter {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(body);
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameWriter(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        void maybeFlush() throws IOException {
+            if (body.size() >= FRAME_LIMIT) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (body.size() == 0) {
+                return;
+            }
+            out.writeByte(type);
+            out.writeInt(body.size());
+            body.writeTo(out);
+            body.reset();
+        }
+    }
+}
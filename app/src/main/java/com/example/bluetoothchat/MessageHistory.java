@@ -0,0 +1,211 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// The conversation as this device knows it: every message we sent or received, from any peer,
+// ordered by message id. Kept in memory and backed by an append-only log in the app's private
+// storage. Because message ids never change, the set of ids is all two devices need to compare to
+// find out which messages one of them is missing.
+class MessageHistory {
+
+    private static final String FILE_NAME = "history.log";
+
+    // Record type in the log file: [id: 8 bytes][author][length: 4 bytes][text]
+    private static final int RECORD_MESSAGE = 'H';
+
+    static class Entry {
+        final long id;
+        final String author;
+        final byte[] text;
+
+        Entry(long id, String author, byte[] text) {
+            this.id = id;
+            this.author = author;
+            this.text = text;
+        }
+    }
+
+    private final File file;
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    private DataOutputStream log;
+
+    MessageHistory(File dir) {
+        file = new File(dir, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Add a message to the history and persist it.
+     *
+     * @return false if a message with this id is already in the history
+     */
+    public synchronized boolean add(long id, String author, byte[] text) {
+        if (entries.containsKey(id)) {
+            return false;
+        }
+        if (author == null) {
+            author = "";
+        } else if (author.length() > ChatProtocol.MAX_AUTHOR_LENGTH) {
+            author = author.substring(0, ChatProtocol.MAX_AUTHOR_LENGTH);
+        }
+        Entry entry = new Entry(id, author, text);
+        entries.put(id, entry);
+        try {
+            DataOutputStream out = openLog();
+            writeRecord(out, entry);
+            out.flush();
+        } catch (IOException e) {
+            // Still usable for this session, it just won't survive a restart
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized Entry get(long id) {
+        return entries.get(id);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the ids in [lo, hi), in ascending order.
+     */
+    public synchronized long[] ids(long lo, long hi) {
+        Collection<Long> keys = entries.subMap(lo, true, hi, false).keySet();
+        long[] ids = new long[keys.size()];
+        int i = 0;
+        for (Long id : keys) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Summarize the ids in [lo, hi) as a count and an order independent hash. Two ranges holding
+     * the same ids always give the same fingerprint.
+     *
+     * @param out out[0] is set to the count and out[1] to the hash
+     */
+    public synchronized void fingerprint(long lo, long hi, long[] out) {
+        long count = 0;
+        long hash = 0;
+        for (Long id : entries.subMap(lo, true, hi, false).keySet()) {
+            count++;
+            hash += hash(id);
+        }
+        out[0] = count;
+        out[1] = hash;
+    }
+
+    /**
+     * Return the most recent messages, oldest first.
+     */
+    public synchronized List<Entry> latest(int count) {
+        List<Entry> latest = new ArrayList<>(Math.min(count, entries.size()));
+        NavigableMap<Long, Entry> descending = entries.descendingMap();
+        for (Entry entry : descending.values()) {
+            if (latest.size() == count) {
+                break;
+            }
+            latest.add(entry);
+        }
+        Collections.reverse(latest);
+        return latest;
+    }
+
+    // splitmix64 finalizer, so neighbouring ids don't cancel out when summed
+    static long hash(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_MESSAGE);
+        out.writeLong(entry.id);
+        out.writeUTF(entry.author);
+        out.writeInt(entry.text.length);
+        out.write(entry.text);
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        if (log == null) {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        return log;
+    }
+
+    // Replay the log into memory. A record cut short by the app dying mid-write is dropped along
+    // with anything after it, and the log is rewritten without it.
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        boolean truncated = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type != RECORD_MESSAGE) {
+                    truncated = true;
+                    break;
+                }
+                long id = in.readLong();
+                String author = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > ChatProtocol.MAX_TEXT_SIZE) {
+                    truncated = true;
+                    break;
+                }
+                byte[] text = new byte[length];
+                in.readFully(text);
+                entries.put(id, new Entry(id, author, text));
+            }
+        } catch (IOException e) {
+            truncated = true;
+        }
+        if (truncated) {
+            rewrite();
+        }
+    }
+
+    // Write the history to a temporary file and rename it over the log, so the log is never
+    // missing the history, even if we die halfway through. If that fails the old log stays as it is.
+    private void rewrite() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Entry entry : entries.values()) {
+                writeRecord(out, entry);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Durable queue of outgoing messages. A message is accepted whatever the connection state and
+// appended to a log file in the app's private storage straight away. Once a batch of messages has
+// been written to a connected peer an acknowledgement record is appended, so on the next start only
+// the messages that never made it out are loaded again. The log is only an append stream, which
+// keeps queueing a message down to a single small write.
+class MessageOutbox {
+
+    private static final String FILE_NAME = "outbox.log";
+
+    // Record types in the log file
+    private static final int RECORD_MESSAGE = 'M';    // [id: 8 bytes][length: 4 bytes][text]
+    private static final int RECORD_ACK = 'A';        // [number of messages sent: 4 bytes]
+
+    static class Entry {
+        final long id;
+        final byte[] text;
+
+        Entry(long id, byte[] text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    private final File file;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private DataOutputStream log;
+
+    MessageOutbox(File dir) {
+        file = new File(dir, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Queue a message and persist it.
+     *
+     * @param text The UTF-8 text of the message, at most ChatProtocol.MAX_TEXT_SIZE bytes
+     * @return The queued entry, with its newly assigned id
+     */
+    public synchronized Entry add(byte[] text) throws IOException {
+        // A longer message would never fit a frame and would block everything queued after it
+        if (text.length > ChatProtocol.MAX_TEXT_SIZE) {
+            throw new IOException("Message too long: " + text.length + " bytes");
+        }
+        Entry entry = new Entry(ChatProtocol.newMessageId(), text);
+        DataOutputStream out = openLog();
+        out.writeByte(RECORD_MESSAGE);
+        out.writeLong(entry.id);
+        out.writeInt(text.length);
+        out.write(text);
+        out.flush();
+        pending.addLast(entry);
+        return entry;
+    }
+
+    /**
+     * Return the oldest queued messages, in order, whose frames fit in maxBytes. At least one
+     * message is returned if the queue is not empty, even if it is larger than maxBytes.
+     */
+    public synchronized List<Entry> peekBatch(int maxBytes) {
+        List<Entry> batch = new ArrayList<>();
+        int size = 0;
+        for (Entry entry : pending) {
+            int frameSize = ChatProtocol.textFrameSize(entry.text);
+            if (!batch.isEmpty() && size + frameSize > maxBytes) {
+                break;
+            }
+            batch.add(entry);
+            size += frameSize;
+        }
+        return batch;
+    }
+
+    /**
+     * Remove the given number of messages from the head of the queue once they have been written.
+     */
+    public synchronized void remove(int count) throws IOException {
+        for (int i = 0; i < count && !pending.isEmpty(); i++) {
+            pending.removeFirst();
+        }
+        if (pending.isEmpty()) {
+            // Nothing left to remember, start the log over
+            closeLog();
+            file.delete();
+            return;
+        }
+        DataOutputStream out = openLog();
+        out.writeByte(RECORD_ACK);
+        out.writeInt(count);
+        out.flush();
+    }
+
+    /**
+     * Return every queued message, oldest first.
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(pending);
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        if (log == null) {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        return log;
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+
+            }
+            log = null;
+        }
+    }
+
+    // Replay the log into memory. A record cut short by the app dying mid-write is dropped, and the
+    // log is rewritten so the next append doesn't land after a half record.
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        boolean truncated = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == RECORD_MESSAGE) {
+                    long id = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > ChatProtocol.MAX_TEXT_SIZE) {
+                        truncated = true;
+                        break;
+                    }
+                    byte[] text = new byte[length];
+                    in.readFully(text);
+                    pending.addLast(new Entry(id, text));
+                } else if (type == RECORD_ACK) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count && !pending.isEmpty(); i++) {
+                        pending.removeFirst();
+                    }
+                } else {
+                    truncated = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            truncated = true;
+        }
+        if (truncated) {
+            rewrite();
+        }
+    }
+
+    // Write the queue to a temporary file and rename it over the log, so the log is never missing
+    // the backlog, even if we die halfway through. If that fails the old log stays as it is.
+    private void rewrite() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Entry entry : pending) {
+                out.writeByte(RECORD_MESSAGE);
+                out.writeLong(entry.id);
+                out.writeInt(entry.text.length);
+                out.write(entry.text);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The last few messages of the conversation in a file of their own, so the chat can show them on
+// its first frame without replaying the whole history log. Only a copy of what MessageHistory
+// holds: it is rewritten from the history now and then, and a missing or damaged snapshot just
+// means the first frame starts empty until the history has loaded.
+//
+// File: [magic: 4 bytes][count: 4 bytes] then count x [id: 8 bytes][author][length: 4 bytes][text]
+final class RecentSnapshot {
+
+    private static final String FILE_NAME = "recent.snap";
+    private static final int MAGIC = 0x42545253;        // "BTRS"
+
+    // Messages kept in the snapshot, about a screenful and then some
+    static final int SIZE = 50;
+
+    private RecentSnapshot() {
+    }
+
+    /**
+     * Read the snapshot, oldest message first.
+     *
+     * @return The messages, or an empty list if there is no usable snapshot
+     */
+    static List<MessageHistory.Entry> read(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return Collections.emptyList();
+            }
+            int count = in.readInt();
+            if (count < 0 || count > SIZE) {
+                return Collections.emptyList();
+            }
+            List<MessageHistory.Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                String author = in.readUTF();
+                int length = in.readInt();
+                if (length < 0 || length > ChatProtocol.MAX_BODY_SIZE) {
+                    return Collections.emptyList();
+                }
+                byte[] text = new byte[length];
+                in.readFully(text);
+                entries.add(new MessageHistory.Entry(id, author, text));
+            }
+            return entries;
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Replace the snapshot with these messages, oldest first.
+     */
+    static synchronized void write(File dir, List<MessageHistory.Entry> entries) throws IOException {
+        // Write to a temporary file first so a reader never sees half a snapshot
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (MessageHistory.Entry entry : entries) {
+                out.writeLong(entry.id);
+                out.writeUTF(entry.author);
+                out.writeInt(entry.text.length);
+                out.write(entry.text);
+            }
+        }
+        if (!tmp.renameTo(new File(dir, FILE_NAME))) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + FILE_NAME);
+        }
+    }
+}
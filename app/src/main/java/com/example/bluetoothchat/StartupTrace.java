@@ -0,0 +1,54 @@
+package com.example.bluetoothchat;
+
+// When each stage of bringing the chat up was reached, counted from the Activity being created.
+// The startup benchmark reads these; they cost a clock read per stage, so they are always on.
+final class StartupTrace {
+
+    static final int CREATED = 0;
+    static final int FIRST_FRAME = 1;           // first frame about to be drawn, from the snapshot
+    static final int HISTORY_LOADED = 2;        // outbox, history and chunk store read
+    static final int LISTENING = 3;             // listening socket open
+
+    private static final long[] marks = new long[4];
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Start timing a new startup, forgetting the last one.
+     */
+    static synchronized void begin() {
+        for (int i = 0; i < marks.length; i++) {
+            marks[i] = 0;
+        }
+        marks[CREATED] = System.nanoTime();
+        StartupTrace.class.notifyAll();
+    }
+
+    /**
+     * Note that a stage was reached. Only the first time counts.
+     */
+    static synchronized void mark(int stage) {
+        if (marks[CREATED] != 0 && marks[stage] == 0) {
+            marks[stage] = System.nanoTime();
+            StartupTrace.class.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for a stage of the current startup to be reached.
+     *
+     * @return Nanoseconds from the Activity being created to the stage, or -1 on timeout
+     */
+    static synchronized long await(int stage, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (marks[stage] == 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return -1;
+            }
+            StartupTrace.class.wait(wait);
+        }
+        return marks[stage] - marks[CREATED];
+    }
+}
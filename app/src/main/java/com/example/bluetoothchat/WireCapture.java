@@ -0,0 +1,105 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Records the raw bytes a ConnectedThread reads and writes, with the time each chunk went by, so a
+// session can be played back later with WireReplay.
+//
+// File layout:
+//   [magic: 4 bytes][version: 4 bytes][wall clock ms at start: 8 bytes]
+//   then repeated [direction: 1 byte][ns since start: 8 bytes][length: 4 bytes][bytes]
+class WireCapture implements Closeable {
+
+    static final int MAGIC = 0x42545743;        // "BTWC"
+    static final int VERSION = 1;
+
+    static final int INBOUND = 'I';
+    static final int OUTBOUND = 'O';
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private boolean failed;
+
+    WireCapture(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16 * 1024));
+        startNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Wrap a socket's input stream so everything read through it is captured.
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    record(INBOUND, new byte[] { (byte) b }, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int n = super.read(buffer, offset, count);
+                if (n > 0) {
+                    record(INBOUND, buffer, offset, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wrap a socket's output stream so everything written through it is captured.
+     */
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                this.out.write(b);
+                record(OUTBOUND, new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                // FilterOutputStream would write byte by byte
+                this.out.write(buffer, offset, count);
+                record(OUTBOUND, buffer, offset, count);
+            }
+        };
+    }
+
+    // A capture that can't be written stops recording but never breaks the connection itself
+    private synchronized void record(int direction, byte[] buffer, int offset, int count) {
+        if (failed) {
+            return;
+        }
+        try {
+            out.writeByte(direction);
+            out.writeLong(System.nanoTime() - startNanos);
+            out.writeInt(count);
+            out.write(buffer, offset, count);
+        } catch (IOException e) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+}
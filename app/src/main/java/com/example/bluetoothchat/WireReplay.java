@@ -0,0 +1,190 @@
+package com.example.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+// Plays the inbound side of a WireCapture back through a FrameReceiver, so a recorded session goes
+// through exactly the parsing, history and UI dispatch code a live connection does, with no
+// Bluetooth hardware involved. Bytes are handed over either at the pace they were recorded or as
+// fast as the receiver takes them. Replies the receiver would send are counted and dropped, and
+// the replay waits for the UI to drain like a sender short of credit would.
+class WireReplay {
+
+    // What a replay did, for comparing runs of the same capture across builds
+    static class Result {
+        final long nanos;
+        final long inboundBytes;
+        final long replyBytes;
+
+        Result(long nanos, long inboundBytes, long replyBytes) {
+            this.nanos = nanos;
+            this.inboundBytes = inboundBytes;
+            this.replyBytes = replyBytes;
+        }
+
+        @Override
+        public String toString() {
+            double millis = nanos / 1e6;
+            return String.format(Locale.US, "%d bytes in %.1f ms (%.0f KB/s), %d bytes of replies",
+                    inboundBytes, millis, millis > 0 ? inboundBytes / 1.024 / millis : 0.0, replyBytes);
+        }
+    }
+
+    private final File capture;
+    private final boolean realTime;
+    private long inboundBytes;
+    private long replyBytes;
+
+    WireReplay(File capture, boolean realTime) {
+        this.capture = capture;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Feed the inbound bytes of the capture through the receiver until the capture ends.
+     *
+     * @throws EOFException if the capture was cut short in the middle of a frame
+     */
+    public Result run(FrameReceiver receiver) throws IOException {
+        long start = System.nanoTime();
+        try (Inbound in = new Inbound(new DataInputStream(new BufferedInputStream(new FileInputStream(capture))))) {
+            // Returns when the capture ends between frames, which is how a replay finishes
+            receiver.receive(in);
+        }
+        return new Result(System.nanoTime() - start, inboundBytes, getReplyBytes());
+    }
+
+    /**
+     * A reply sink that throws replies away, for receivers fed by a replay.
+     */
+    public FrameReceiver.ReplySink discardReplies() {
+        return new FrameReceiver.ReplySink() {
+            @Override
+            public void writeFrames(ByteArrayOutputStream frames) {
+                synchronized (WireReplay.this) {
+                    replyBytes += frames.size();
+                }
+            }
+
+            @Override
+            public void sendPending() {
+            }
+
+            @Override
+            public void sendCredit(int bytes) {
+                synchronized (WireReplay.this) {
+                    replyBytes += ChatProtocol.HEADER_SIZE + 4;
+                }
+            }
+        };
+    }
+
+    /**
+     * Flow control for receivers fed by a replay, which stalls the replay instead of failing when
+     * the UI falls a window behind, and ignores the CREDIT frames the recorded peer sent for what
+     * the live connection wrote.
+     */
+    public FlowControl flowControl() {
+        return new FlowControl(ChatProtocol.RECEIVE_WINDOW, true);
+    }
+
+    private synchronized long getReplyBytes() {
+        return replyBytes;
+    }
+
+    // The inbound records of the capture as one stream, optionally paced by their timestamps
+    private class Inbound extends InputStream {
+        private final DataInputStream records;
+        private final long replayStart = System.nanoTime();
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        Inbound(DataInputStream records) throws IOException {
+            this.records = records;
+            if (records.readInt() != WireCapture.MAGIC) {
+                throw new IOException("Not a wire capture");
+            }
+            int version = records.readInt();
+            if (version != WireCapture.VERSION) {
+                throw new IOException("Unsupported capture version " + version);
+            }
+            records.readLong();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(count, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            records.close();
+        }
+
+        // Load the next inbound record once the current one is used up
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                int direction;
+                try {
+                    direction = records.readUnsignedByte();
+                } catch (EOFException e) {
+                    return false;
+                }
+                long offsetNanos = records.readLong();
+                int length = records.readInt();
+                if (length < 0) {
+                    throw new IOException("Bad capture record length " + length);
+                }
+                byte[] bytes = new byte[length];
+                records.readFully(bytes);
+                if (direction != WireCapture.INBOUND) {
+                    continue;
+                }
+                if (realTime) {
+                    pace(offsetNanos);
+                }
+                chunk = bytes;
+                position = 0;
+                inboundBytes += length;
+            }
+            return true;
+        }
+
+        private void pace(long offsetNanos) throws IOException {
+            long wait = offsetNanos - (System.nanoTime() - replayStart);
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Replay interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AttachmentTransferTest {
+
+    private static final int SIZE = 3 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // What one transfer put on the wire and what came out the other end
+    private static class Exchange {
+        long bytes;
+        long chunkBytes;
+        final List<File> files = new ArrayList<>();
+        final List<String> lost = new ArrayList<>();
+    }
+
+    @Test
+    public void firstTransferSendsEveryChunk() throws IOException {
+        AttachmentTransfer sender = transfer(64 * 1024 * 1024);
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        byte[] data = ContentChunkerTest.randomBytes(SIZE, 1);
+
+        Exchange exchange = exchange(sender, receiver, 1, "photo.jpg", data);
+
+        assertEquals(1, exchange.files.size());
+        assertEquals("photo.jpg", exchange.files.get(0).getName());
+        assertArrayEquals(data, Files.readAllBytes(exchange.files.get(0).toPath()));
+        assertTrue(exchange.chunkBytes >= SIZE);
+    }
+
+    @Test
+    public void resharingCostsOnlyTheManifest() throws IOException {
+        AttachmentTransfer sender = transfer(64 * 1024 * 1024);
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        byte[] data = ContentChunkerTest.randomBytes(SIZE, 2);
+        exchange(sender, receiver, 1, "photo.jpg", data);
+
+        Exchange again = exchange(sender, receiver, 2, "photo.jpg", data);
+
+        assertEquals(1, again.files.size());
+        assertArrayEquals(data, Files.readAllBytes(again.files.get(0).toPath()));
+        assertEquals(0, again.chunkBytes);
+        // 36 bytes a chunk, about 11 KB for 3 MB
+        assertTrue("Re-share cost " + again.bytes + " bytes", again.bytes < 16 * 1024);
+    }
+
+    @Test
+    public void editedFileSendsOnlyTheChangedChunks() throws IOException {
+        AttachmentTransfer sender = transfer(64 * 1024 * 1024);
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        byte[] data = ContentChunkerTest.randomBytes(SIZE, 3);
+        exchange(sender, receiver, 1, "notes.txt", data);
+        data[SIZE / 2] ^= 1;
+
+        Exchange edited = exchange(sender, receiver, 2, "notes.txt", data);
+
+        assertEquals(1, edited.files.size());
+        assertArrayEquals(data, Files.readAllBytes(edited.files.get(0).toPath()));
+        // The manifest and a chunk or two, tens of KB rather than 3 MB
+        assertTrue("Edited chunks " + edited.chunkBytes + " bytes", edited.chunkBytes <= 2 * ContentChunker.MAX_SIZE);
+        assertTrue("Edit cost " + edited.bytes + " bytes", edited.bytes < 16 * 1024 + 2 * ContentChunker.MAX_SIZE);
+    }
+
+    @Test
+    public void evictedChunkIsReportedMissing() throws IOException {
+        // Too small to hold the whole attachment, the first chunks are gone by the time it's asked
+        AttachmentTransfer sender = transfer(100 * 1024);
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        byte[] data = ContentChunkerTest.randomBytes(300 * 1024, 4);
+
+        Exchange exchange = exchange(sender, receiver, 1, "big.bin", data);
+
+        assertTrue(exchange.files.isEmpty());
+        assertEquals(Arrays.asList("big.bin"), exchange.lost);
+        // The rest of the attachment's chunks aren't sent for nothing
+        assertEquals(0, exchange.chunkBytes);
+    }
+
+    @Test
+    public void tooLargeAttachmentIsRefusedBeforeStoringAnything() throws IOException {
+        File chunks = folder.newFolder();
+        ChunkStore store = new ChunkStore(chunks, 64 * 1024 * 1024);
+        File attachments = folder.newFolder();
+        AttachmentTransfer sender = new AttachmentTransfer(store, attachments);
+        byte[] useful = "an earlier chunk".getBytes();
+        store.put(ContentChunker.hash(useful), useful);
+        // Enough chunks for two manifests, about 36 MB
+        InputStream data = new RandomStream(2L * AttachmentTransfer.MAX_CHUNKS * 10 * 1024);
+
+        try {
+            sender.offer(1, "huge.bin", data, new DataOutputStream(new ByteArrayOutputStream()));
+            fail("Oversize attachment offered");
+        } catch (IOException expected) {
+        }
+
+        assertTrue(store.contains(ContentChunker.hash(useful)));
+        assertEquals(1, chunks.listFiles().length);
+        assertEquals(0, attachments.listFiles().length);
+    }
+
+    @Test
+    public void longNameIsShortenedToFitTheManifest() throws IOException {
+        AttachmentTransfer sender = transfer(64 * 1024 * 1024);
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        char[] chars = new char[1000];
+        // The widest chars writeUTF has, 3 bytes each
+        Arrays.fill(chars, '\u4e2d');
+        String name = new String(chars) + ".jpg";
+        byte[] data = ContentChunkerTest.randomBytes(50 * 1024, 5);
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        sender.offer(1, name, new ByteArrayInputStream(data), new DataOutputStream(manifest));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest.toByteArray()));
+        int[] length = new int[1];
+        assertEquals(ChatProtocol.FRAME_MANIFEST, ChatProtocol.readHeader(in, length));
+        in.readLong();
+        in.readUTF();
+        in.readLong();
+        int count = in.readInt();
+        // What MAX_CHUNKS leaves for everything before the chunk list
+        assertTrue(length[0] - count * (ContentChunker.HASH_SIZE + 4) <= 1024);
+
+        Exchange exchange = exchange(sender, receiver, 2, name, data);
+        String received = exchange.files.get(0).getName();
+        assertEquals(AttachmentTransfer.MAX_NAME_LENGTH, received.length());
+        assertTrue(received.endsWith(".jpg"));
+    }
+
+    @Test
+    public void onlyChunksOfferedOnThisConnectionAreServed() throws IOException {
+        ChunkStore store = new ChunkStore(folder.newFolder(), 64 * 1024 * 1024);
+        // Received from some other device earlier
+        byte[] other = "someone else's chunk".getBytes();
+        store.put(ContentChunker.hash(other), other);
+        AttachmentTransfer sender = new AttachmentTransfer(store, folder.newFolder());
+        byte[] data = ContentChunkerTest.randomBytes(1000, 9);
+        sender.offer(1, "note.txt", new ByteArrayInputStream(data), new DataOutputStream(new ByteArrayOutputStream()));
+
+        try {
+            sender.onRequest(request(1, ContentChunker.hash(other)));
+            fail("Served a chunk that was never offered");
+        } catch (IOException expected) {
+        }
+        try {
+            sender.onRequest(request(2, ContentChunker.hash(data)));
+            fail("Served chunks for an attachment that was never offered");
+        } catch (IOException expected) {
+        }
+        assertNull(sender.peekChunkFrame());
+
+        sender.onRequest(request(1, ContentChunker.hash(data)));
+        assertEquals(ChatProtocol.FRAME_CHUNK, sender.peekChunkFrame()[0]);
+    }
+
+    private static byte[] request(long id, byte[] hash) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(id);
+        out.write(hash);
+        return body.toByteArray();
+    }
+
+    @Test
+    public void peerRequestingPastTheLimitIsRefused() throws IOException {
+        AttachmentTransfer sender = transfer(64 * 1024 * 1024);
+        byte[] data = ContentChunkerTest.randomBytes(1000, 7);
+        sender.offer(1, "note.txt", new ByteArrayInputStream(data), new DataOutputStream(new ByteArrayOutputStream()));
+        // The one chunk, over and over, a full frame at a time
+        byte[] hash = ContentChunker.hash(data);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(1);
+        for (int i = 0; i < AttachmentTransfer.MAX_CHUNKS; i++) {
+            out.write(hash);
+        }
+
+        int frames = AttachmentTransfer.MAX_PENDING_CHUNKS / AttachmentTransfer.MAX_CHUNKS;
+        for (int i = 0; i < frames; i++) {
+            sender.onRequest(body.toByteArray());
+        }
+        try {
+            sender.onRequest(body.toByteArray());
+            fail("Took requests past MAX_PENDING_CHUNKS");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void manifestsPastTheLimitAreRefused() throws IOException {
+        AttachmentTransfer receiver = transfer(64 * 1024 * 1024);
+        Random random = new Random(8);
+        DataOutputStream requests = new DataOutputStream(new ByteArrayOutputStream());
+
+        int manifests = AttachmentTransfer.MAX_PENDING_CHUNKS / AttachmentTransfer.MAX_CHUNKS;
+        for (int i = 0; i < manifests; i++) {
+            assertNull(receiver.onManifest(fullManifest(i, random), requests));
+        }
+        try {
+            receiver.onManifest(fullManifest(manifests, random), requests);
+            fail("Waited for chunks past MAX_PENDING_CHUNKS");
+        } catch (IOException expected) {
+        }
+    }
+
+    // A MANIFEST body of MAX_CHUNKS chunks nobody has
+    private static byte[] fullManifest(long id, Random random) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(id);
+        out.writeUTF("big.bin");
+        out.writeLong((long) AttachmentTransfer.MAX_CHUNKS * ContentChunker.MAX_SIZE);
+        out.writeInt(AttachmentTransfer.MAX_CHUNKS);
+        byte[] hash = new byte[ContentChunker.HASH_SIZE];
+        for (int i = 0; i < AttachmentTransfer.MAX_CHUNKS; i++) {
+            random.nextBytes(hash);
+            out.write(hash);
+            out.writeInt(ContentChunker.MAX_SIZE);
+        }
+        return body.toByteArray();
+    }
+
+    private AttachmentTransfer transfer(long storeBytes) throws IOException {
+        return new AttachmentTransfer(new ChunkStore(folder.newFolder(), storeBytes), folder.newFolder());
+    }
+
+    // Offer data from sender to receiver and deliver frames between the two until both are quiet
+    private static Exchange exchange(AttachmentTransfer sender, AttachmentTransfer receiver, long id, String name,
+                                     byte[] data) throws IOException {
+        AttachmentTransfer[] sides = {sender, receiver};
+        Exchange exchange = new Exchange();
+        ArrayDeque<byte[]> toSide = new ArrayDeque<>();
+        ArrayDeque<Integer> toWhom = new ArrayDeque<>();
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        sender.offer(id, name, new ByteArrayInputStream(data), new DataOutputStream(manifest));
+        toSide.add(manifest.toByteArray());
+        toWhom.add(1);
+
+        int[] length = new int[1];
+        while (!toSide.isEmpty()) {
+            byte[] frames = toSide.removeFirst();
+            int to = toWhom.removeFirst();
+            AttachmentTransfer side = sides[to];
+            exchange.bytes += frames.length;
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(reply);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+            int type;
+            while ((type = ChatProtocol.readHeader(in, length)) >= 0) {
+                byte[] body = new byte[length[0]];
+                in.readFully(body);
+                switch (type) {
+                    case ChatProtocol.FRAME_MANIFEST:
+                        File have = side.onManifest(body, out);
+                        if (have != null) {
+                            exchange.files.add(have);
+                        }
+                        break;
+                    case ChatProtocol.FRAME_CHUNK_REQUEST:
+                        side.onRequest(body);
+                        byte[] chunk;
+                        while ((chunk = side.peekChunkFrame()) != null) {
+                            out.write(chunk);
+                            side.chunkSent();
+                        }
+                        break;
+                    case ChatProtocol.FRAME_CHUNK:
+                        exchange.chunkBytes += body.length - ContentChunker.HASH_SIZE;
+                        exchange.files.addAll(side.onChunk(body, out));
+                        break;
+                    case ChatProtocol.FRAME_CHUNK_MISSING:
+                        exchange.lost.add(side.onMissing(body));
+                        break;
+                    default:
+                        fail("Unexpected frame " + type);
+                }
+            }
+            if (reply.size() > 0) {
+                toSide.add(reply.toByteArray());
+                toWhom.add(1 - to);
+            }
+        }
+        return exchange;
+    }
+
+    // Random bytes without holding them all in memory
+    private static class RandomStream extends InputStream {
+        private final Random random = new Random(6);
+        private long left;
+
+        RandomStream(long size) {
+            left = size;
+        }
+
+        @Override
+        public int read() {
+            if (left == 0) {
+                return -1;
+            }
+            left--;
+            return random.nextInt(256);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (left == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(count, left);
+            byte[] bytes = new byte[n];
+            random.nextBytes(bytes);
+            System.arraycopy(bytes, 0, buffer, offset, n);
+            left -= n;
+            return n;
+        }
+    }
+}
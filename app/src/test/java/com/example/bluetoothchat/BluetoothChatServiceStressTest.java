@@ -0,0 +1,434 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives two BluetoothChatServices through start, stop, connect, write and dropped links from
+ * several threads at once over a SimulatedTransport, and checks after every round that nothing
+ * leaked and the UI heard about every state change.
+ *
+ * Run longer with -Dstress.iterations=1000000, repeat a failing run with -Dstress.seed=...
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BluetoothChatServiceStressTest {
+
+    private static final int ITERATIONS = Integer.getInteger("stress.iterations", 20000);
+    private static final int RECONNECTS = Integer.getInteger("stress.reconnects", 500);
+    private static final long SEED = Long.getLong("stress.seed", System.nanoTime());
+    private static final int WORKERS = 4;
+    private static final int OPS_PER_ROUND = 200;
+    private static final long SETTLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int SMALL_PIPE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HandlerThread uiThread;
+    private SimulatedTransport.Air air;
+    private Peer a;
+    private Peer b;
+
+    // Stands in for the UI Activity: remembers the state changes it was told about
+    private static class StateRecorder extends Handler {
+        volatile int lastState = BluetoothChatService.STATE_NONE;
+        volatile int connectedEvents;
+        volatile int connectedWithoutName;
+        // Messages from the other side, live or through a history sync
+        volatile int received;
+        volatile int written;
+        volatile File attachment;
+        private final String self;
+        private boolean named;
+
+        StateRecorder(Looper looper, String self) {
+            super(looper);
+            this.self = self;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case BluetoothChat.MESSAGE_WRITE:
+                    written++;
+                    break;
+                case BluetoothChat.MESSAGE_ATTACHMENT:
+                    attachment = (File) msg.obj;
+                    break;
+                case BluetoothChat.MESSAGE_READ:
+                    received++;
+                    break;
+                case BluetoothChat.MESSAGE_HISTORY:
+                    // A sync can also bring back our own messages the peer heard before we
+                    // recorded them as sent
+                    for (Object entry : (List<?>) msg.obj) {
+                        if (!((MessageHistory.Entry) entry).author.equals(self)) {
+                            received++;
+                        }
+                    }
+                    break;
+                case BluetoothChat.MESSAGE_DEVICE_NAME:
+                    named = true;
+                    break;
+                case BluetoothChat.MESSAGE_STATE_CHANGE:
+                    lastState = msg.arg1;
+                    if (msg.arg1 == BluetoothChatService.STATE_CONNECTED) {
+                        connectedEvents++;
+                        if (!named) {
+                            connectedWithoutName++;
+                        }
+                        named = false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static class Peer {
+        final String address;
+        final SimulatedTransport transport;
+        final StateRecorder ui;
+        final BluetoothChatService service;
+
+        Peer(String address, SimulatedTransport transport, StateRecorder ui, BluetoothChatService service) {
+            this.address = address;
+            this.transport = transport;
+            this.ui = ui;
+            this.service = service;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        uiThread = new HandlerThread("StressUi");
+        uiThread.start();
+        air = new SimulatedTransport.Air();
+        a = newPeer("00:00:00:00:00:0A", "A");
+        b = newPeer("00:00:00:00:00:0B", "B");
+    }
+
+    @After
+    public void tearDown() {
+        a.service.stop();
+        b.service.stop();
+        uiThread.quit();
+    }
+
+    private Peer newPeer(String address, String name) throws IOException {
+        final File filesDir = folder.newFolder(name + "-files");
+        final File cacheDir = folder.newFolder(name + "-cache");
+        Context context = new ContextWrapper(RuntimeEnvironment.getApplication()) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+        SimulatedTransport transport = new SimulatedTransport(air, address, name);
+        StateRecorder ui = new StateRecorder(uiThread.getLooper(), name);
+        return new Peer(address, transport, ui, new BluetoothChatService(context, ui, transport));
+    }
+
+    @Test
+    public void concurrentTransitionsKeepInvariants() throws Exception {
+        System.out.println("stress.seed=" + SEED);
+        int rounds = Math.max(1, ITERATIONS / OPS_PER_ROUND);
+        for (int round = 0; round < rounds; round++) {
+            // Every other round with pipes smaller than a batch of frames, so writers block
+            air.pipeCapacity = round % 2 == 0 ? 64 * 1024 : SMALL_PIPE;
+            List<Thread> workers = new ArrayList<>();
+            final CountDownLatch go = new CountDownLatch(1);
+            for (int i = 0; i < WORKERS; i++) {
+                final Random random = new Random(SEED + round * WORKERS + i);
+                Thread worker = new Thread("StressWorker") {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int op = 0; op < OPS_PER_ROUND / WORKERS; op++) {
+                            step(random);
+                        }
+                    }
+                };
+                worker.start();
+                workers.add(worker);
+            }
+            go.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            a.service.stop();
+            b.service.stop();
+            awaitQuiet();
+            assertClean("round " + round);
+        }
+        int connected = a.ui.connectedEvents + b.ui.connectedEvents;
+        System.out.println("Sessions established: " + connected + " in " + rounds + " rounds");
+        assertTrue("No session was ever established", connected > 0);
+    }
+
+    // One random operation, weighted towards the ones that race each other
+    private void step(Random random) {
+        Peer peer = random.nextBoolean() ? a : b;
+        Peer other = peer == a ? b : a;
+        int op = random.nextInt(100);
+        if (op < 25) {
+            peer.service.start();
+        } else if (op < 55) {
+            peer.service.connect(other.address);
+        } else if (op < 65) {
+            peer.service.stop();
+        } else if (op < 85) {
+            peer.service.write(("m" + random.nextInt()).getBytes());
+        } else if (op < 90) {
+            air.dropLinks();
+        } else {
+            // Give connections a chance to come up before the next operation tears them down
+            LockSupport.parkNanos(random.nextInt(200000));
+        }
+    }
+
+    @Test
+    public void bothSidesFlushingAtOnceDoNotDeadlock() throws Exception {
+        // Far more queued on each side than the link buffers, as after a long time apart
+        air.pipeCapacity = SMALL_PIPE;
+        int queued = 500;
+        for (int i = 0; i < queued; i++) {
+            a.service.write(("from A " + i).getBytes());
+            b.service.write(("from B " + i).getBytes());
+        }
+        a.service.start();
+        b.service.start();
+        b.service.connect(a.address);
+        awaitConnected();
+
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (a.ui.received < queued || b.ui.received < queued) {
+            assertTrue("Deadlocked with A at " + a.ui.received + " and B at " + b.ui.received + " of " + queued
+                    + "\n" + serviceThreadStacks(), System.nanoTime() < deadline);
+            LockSupport.parkNanos(100000);
+        }
+        assertEquals(queued, a.ui.received);
+        assertEquals(queued, b.ui.received);
+
+        a.service.stop();
+        b.service.stop();
+        awaitQuiet();
+        assertClean("after flushing");
+    }
+
+    @Test
+    public void queuedMessageReachesHistoryAndUiOnceSent() throws Exception {
+        a.service.write("queued".getBytes());
+        // Not said yet, so not in the history a restart would show
+        assertTrue(a.service.recentMessages().isEmpty());
+
+        a.service.start();
+        b.service.start();
+        b.service.connect(a.address);
+        awaitConnected();
+        awaitReceived(b, 1);
+        // Reconnecting must not report it again
+        b.service.stop();
+        awaitState(a, BluetoothChatService.STATE_LISTEN);
+        b.service.start();
+        b.service.connect(a.address);
+        awaitConnected();
+        a.service.write("after".getBytes());
+        awaitReceived(b, 2);
+        a.service.stop();
+        b.service.stop();
+        awaitQuiet();
+
+        assertEquals(2, a.ui.written);
+        List<MessageHistory.Entry> recent = a.service.recentMessages();
+        assertEquals(2, recent.size());
+        assertEquals("queued", new String(recent.get(0).text));
+    }
+
+    @Test
+    public void attachmentCrossesASmallLink() throws Exception {
+        // Chunks go out on the writer alongside credit, through a link that fills up at once
+        air.pipeCapacity = SMALL_PIPE;
+        byte[] data = ContentChunkerTest.randomBytes(512 * 1024, 11);
+        a.service.start();
+        b.service.start();
+        b.service.connect(a.address);
+        awaitConnected();
+
+        assertTrue(a.service.sendAttachment("photo.jpg", new ByteArrayInputStream(data)));
+
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (b.ui.attachment == null) {
+            assertTrue("Timed out waiting for the attachment", System.nanoTime() < deadline);
+            LockSupport.parkNanos(10000);
+        }
+        assertArrayEquals(data, Files.readAllBytes(b.ui.attachment.toPath()));
+    }
+
+    @Test
+    public void reconnectLatency() throws Exception {
+        a.service.start();
+        b.service.start();
+        b.service.connect(a.address);
+        awaitConnected();
+
+        long[] nanos = new long[RECONNECTS];
+        for (int i = 0; i < RECONNECTS; i++) {
+            long start = System.nanoTime();
+            b.service.stop();
+            // A notices the link is gone and goes back to listening
+            awaitState(a, BluetoothChatService.STATE_LISTEN);
+            b.service.start();
+            b.service.connect(a.address);
+            awaitConnected();
+            nanos[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(nanos);
+        System.out.println(String.format("Teardown and re-establish over %d runs: p50 %d us, p90 %d us, p99 %d us, max %d us",
+                RECONNECTS, percentile(nanos, 50) / 1000, percentile(nanos, 90) / 1000,
+                percentile(nanos, 99) / 1000, nanos[nanos.length - 1] / 1000));
+
+        a.service.stop();
+        b.service.stop();
+        awaitQuiet();
+        assertClean("after reconnects");
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private void awaitConnected() {
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (a.service.getState() != BluetoothChatService.STATE_CONNECTED
+                || b.service.getState() != BluetoothChatService.STATE_CONNECTED) {
+            // A connect that lost a race with A's restart is retried, as a user would
+            if (b.service.getState() == BluetoothChatService.STATE_LISTEN) {
+                b.service.connect(a.address);
+            }
+            assertTrue("Timed out connecting", System.nanoTime() < deadline);
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+    private void awaitReceived(Peer peer, int count) {
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (peer.ui.received < count) {
+            assertTrue("Timed out waiting for message " + count, System.nanoTime() < deadline);
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+    private void awaitState(Peer peer, int state) {
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (peer.service.getState() != state) {
+            assertTrue("Timed out waiting for state " + state, System.nanoTime() < deadline);
+            LockSupport.parkNanos(10000);
+        }
+    }
+
+    // Wait for the service threads to exit, their sockets to close and the UI to catch up
+    private void awaitQuiet() throws InterruptedException {
+        long deadline = System.nanoTime() + SETTLE_NANOS;
+        while (System.nanoTime() < deadline) {
+            if (openSockets() == 0 && liveServiceThreads().isEmpty()) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        final CountDownLatch drained = new CountDownLatch(1);
+        a.ui.post(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue("UI thread stuck", drained.await(10, TimeUnit.SECONDS));
+    }
+
+    private int openSockets() {
+        return a.transport.openSockets.get() + a.transport.openServers.get()
+                + b.transport.openSockets.get() + b.transport.openServers.get();
+    }
+
+    private static String serviceThreadStacks() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (isServiceThread(entry.getKey())) {
+                sb.append(entry.getKey().getName()).append('\n');
+                for (StackTraceElement frame : entry.getValue()) {
+                    sb.append("    at ").append(frame).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<String> liveServiceThreads() {
+        List<String> live = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (isServiceThread(thread)) {
+                live.add(thread.getName());
+            }
+        }
+        return live;
+    }
+
+    // By class rather than name, the threads only name themselves once they start running
+    private static boolean isServiceThread(Thread thread) {
+        return thread.isAlive() && thread.getClass().getName().startsWith(BluetoothChatService.class.getName() + "$");
+    }
+
+    private void assertClean(String when) {
+        for (Peer peer : new Peer[]{a, b}) {
+            String who = peer.transport.getLocalName() + " " + when;
+            assertEquals(who + ": leaked sockets", 0, peer.transport.openSockets.get());
+            assertEquals(who + ": leaked server sockets", 0, peer.transport.openServers.get());
+            assertEquals(who + ": concurrent sessions or listeners", 0, peer.transport.violations.get());
+            assertEquals(who + ": service state", BluetoothChatService.STATE_NONE, peer.service.getState());
+            assertEquals(who + ": state the UI was told", BluetoothChatService.STATE_NONE, peer.ui.lastState);
+            assertEquals(who + ": connected without a device name", 0, peer.ui.connectedWithoutName);
+        }
+        assertEquals(when + ": leaked threads\n" + serviceThreadStacks(), new ArrayList<String>(), liveServiceThreads());
+    }
+}
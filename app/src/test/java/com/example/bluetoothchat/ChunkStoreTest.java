@@ -0,0 +1,90 @@
+package com.example.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ChunkStoreTest {
+
+    private static final int CHUNK = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @Test
+    public void storedChunkComesBack() throws IOException {
+        ChunkStore store = new ChunkStore(dir, 10 * CHUNK);
+        byte[] chunk = ContentChunkerTest.randomBytes(CHUNK, 1);
+        byte[] hash = ContentChunker.hash(chunk);
+        assertFalse(store.contains(hash));
+
+        store.put(hash, chunk);
+
+        assertTrue(store.contains(hash));
+        assertArrayEquals(chunk, store.get(hash));
+        assertNull(store.get(ContentChunker.hash(new byte[1])));
+    }
+
+    @Test
+    public void leastRecentlyUsedChunkIsEvicted() throws IOException {
+        ChunkStore store = new ChunkStore(dir, 3 * CHUNK);
+        byte[][] hashes = new byte[4][];
+        for (int i = 0; i < 3; i++) {
+            hashes[i] = put(store, i);
+        }
+        // Using the oldest makes the second the least recently used
+        assertNotNull(store.get(hashes[0]));
+
+        hashes[3] = put(store, 3);
+
+        assertTrue(store.contains(hashes[0]));
+        assertFalse(store.contains(hashes[1]));
+        assertFalse(new File(dir, ChunkStore.hex(hashes[1])).exists());
+        assertTrue(store.contains(hashes[2]));
+        assertTrue(store.contains(hashes[3]));
+    }
+
+    @Test
+    public void storeIsReloadedWithinItsBound() throws IOException {
+        ChunkStore store = new ChunkStore(dir, 10 * CHUNK);
+        byte[][] hashes = new byte[4][];
+        for (int i = 0; i < 4; i++) {
+            hashes[i] = put(store, i);
+        }
+        // Left behind by a write that never finished
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "abc.tmp"))) {
+            out.write(1);
+        }
+
+        ChunkStore reloaded = new ChunkStore(dir, 10 * CHUNK);
+        for (byte[] hash : hashes) {
+            assertTrue(reloaded.contains(hash));
+        }
+        assertFalse(new File(dir, "abc.tmp").exists());
+
+        // A smaller bound drops chunks down to it
+        new ChunkStore(dir, 2 * CHUNK);
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    private static byte[] put(ChunkStore store, int seed) throws IOException {
+        byte[] chunk = ContentChunkerTest.randomBytes(CHUNK, seed);
+        byte[] hash = ContentChunker.hash(chunk);
+        store.put(hash, chunk);
+        return hash;
+    }
+}
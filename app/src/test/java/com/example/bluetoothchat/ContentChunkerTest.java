@@ -0,0 +1,94 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ContentChunkerTest {
+
+    private static final int SIZE = 3 * 1024 * 1024;
+
+    @Test
+    public void chunksAreWithinBoundsAndAddUpToTheInput() throws IOException {
+        byte[] data = randomBytes(SIZE, 1);
+        List<byte[]> chunks = chunk(data);
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            assertTrue(chunk.length <= ContentChunker.MAX_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.length >= ContentChunker.MIN_SIZE);
+            }
+            joined.write(chunk);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        // About 8 KB past MIN_SIZE on average
+        int average = SIZE / chunks.size();
+        assertTrue("Average chunk " + average, average > 6 * 1024 && average < 16 * 1024);
+    }
+
+    @Test
+    public void emptyInputHasNoChunks() throws IOException {
+        assertNull(new ContentChunker(new ByteArrayInputStream(new byte[0])).next());
+    }
+
+    @Test
+    public void oneByteEditChangesOnlyTheChunkAroundIt() throws IOException {
+        byte[] data = randomBytes(SIZE, 2);
+        Set<String> before = hashes(data);
+        data[SIZE / 2] ^= 1;
+        Set<String> after = hashes(data);
+
+        after.removeAll(before);
+        // The edited chunk, and at most the one after it if the edit moved a boundary
+        assertTrue(after.size() + " chunks changed", after.size() >= 1 && after.size() <= 2);
+    }
+
+    @Test
+    public void insertedBytesOnlyChangeTheChunksAroundThem() throws IOException {
+        byte[] data = randomBytes(SIZE, 3);
+        byte[] edited = new byte[SIZE + 100];
+        System.arraycopy(data, 0, edited, 0, 1000);
+        System.arraycopy(data, 1000, edited, 1100, SIZE - 1000);
+        Set<String> before = hashes(data);
+        Set<String> after = hashes(edited);
+
+        after.removeAll(before);
+        // Fixed size blocks would all shift and change, content defined boundaries resync
+        assertTrue(after.size() + " chunks changed", after.size() <= 2);
+    }
+
+    private static List<byte[]> chunk(byte[] data) throws IOException {
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data));
+        List<byte[]> chunks = new ArrayList<>();
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static Set<String> hashes(byte[] data) throws IOException {
+        Set<String> hashes = new HashSet<>();
+        for (byte[] chunk : chunk(data)) {
+            hashes.add(ChunkStore.hex(ContentChunker.hash(chunk)));
+        }
+        return hashes;
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
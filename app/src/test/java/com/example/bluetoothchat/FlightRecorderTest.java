@@ -0,0 +1,84 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dumpDecodesToTheRecordedTimeline() throws IOException {
+        FlightRecorder.record(FlightRecorder.EV_STATE, BluetoothChatService.STATE_CONNECTED);
+        FlightRecorder.record(FlightRecorder.EV_READ, ChatProtocol.FRAME_TEXT, 42);
+        FlightRecorder.error(FlightRecorder.ERR_CONNECT);
+
+        String[] lines = dumpAndDecode();
+
+        // Other tests may have recorded before us, ours are the last three
+        int n = lines.length;
+        assertTrue(n >= 3);
+        assertTrue(lines[n - 3], lines[n - 3].endsWith("STATE CONNECTED"));
+        assertTrue(lines[n - 2], lines[n - 2].endsWith("READ frame 1, 42 bytes"));
+        assertTrue(lines[n - 1], lines[n - 1].endsWith("ERROR connect"));
+    }
+
+    @Test
+    public void queueDepthsDecode() throws IOException {
+        FlightRecorder.record(FlightRecorder.EV_QUEUE, 3, 4096);
+        FlightRecorder.record(FlightRecorder.EV_REQUESTS, 17);
+
+        String[] lines = dumpAndDecode();
+
+        int n = lines.length;
+        assertTrue(lines[n - 2], lines[n - 2].endsWith("QUEUE 4096 bytes queued, 3 frames held"));
+        assertTrue(lines[n - 1], lines[n - 1].endsWith("REQUESTS 17 chunks requested"));
+    }
+
+    @Test
+    public void dumpHoldsTheLastCapacityEvents() throws IOException {
+        for (int i = 0; i < FlightRecorder.CAPACITY + 100; i++) {
+            FlightRecorder.record(FlightRecorder.EV_OUTBOX, i);
+        }
+
+        String[] lines = dumpAndDecode();
+
+        assertEquals(FlightRecorder.CAPACITY, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("OUTBOX 100 queued"));
+        assertTrue(lines[lines.length - 1], lines[lines.length - 1].endsWith("OUTBOX " + (FlightRecorder.CAPACITY + 99) + " queued"));
+    }
+
+    @Test
+    public void decoderRejectsOtherFiles() {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(new byte[64]))) {
+            FlightRecorderDecoder.decode(in, new PrintStream(new ByteArrayOutputStream()));
+            fail("Decoded a file of zeros");
+        } catch (IOException expected) {
+        }
+    }
+
+    private String[] dumpAndDecode() throws IOException {
+        File file = folder.newFile();
+        int count = FlightRecorder.dump(file);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            FlightRecorderDecoder.decode(in, new PrintStream(text, true));
+        }
+        String[] lines = text.toString().split("\\r?\\n");
+        assertEquals(count, lines.length);
+        return lines;
+    }
+}
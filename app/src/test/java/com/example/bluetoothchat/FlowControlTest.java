@@ -0,0 +1,143 @@
+package com.example.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlowControlTest {
+
+    private static final int WINDOW = 1000;
+
+    @Test
+    public void senderStopsAtTheWindowUntilGranted() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        assertTrue(flow.tryAcquire(600));
+        assertFalse(flow.tryAcquire(500));
+        assertEquals(400, flow.available());
+
+        flow.grant(600);
+        assertTrue(flow.tryAcquire(500));
+        assertEquals(500, flow.available());
+    }
+
+    @Test
+    public void grantBeyondTheWindowIsRefused() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        flow.tryAcquire(100);
+        try {
+            flow.grant(101);
+            fail("Peer granted more than it was sent");
+        } catch (IOException expected) {
+        }
+        try {
+            flow.grant(-1);
+            fail("Negative grant accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void creditComesBackAQuarterWindowAtATime() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        for (int i = 0; i < 10; i++) {
+            flow.received(100);
+        }
+        // Nothing is given back until a quarter of the window has been consumed
+        assertEquals(0, flow.consumed(100));
+        assertEquals(0, flow.consumed(100));
+        assertEquals(300, flow.consumed(100));
+        assertEquals(0, flow.consumed(100));
+    }
+
+    @Test
+    public void creditComesBackOnceEverythingIsConsumed() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        flow.received(100);
+        flow.received(50);
+        assertEquals(0, flow.consumed(100));
+        // Nothing left unconsumed, so the peer isn't kept waiting for the quarter
+        assertEquals(150, flow.consumed(50));
+    }
+
+    @Test
+    public void peerOverrunningItsCreditFails() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        flow.received(WINDOW - 10);
+        try {
+            flow.received(11);
+            fail("Overrun accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void creditNotYetGrantedStillCountsAgainstThePeer() throws IOException {
+        FlowControl flow = new FlowControl(WINDOW, false);
+        flow.received(WINDOW / 2);
+        flow.received(WINDOW / 2);
+        // Consumed but below the threshold, so the peer hasn't had it back and can't spend it
+        assertEquals(0, flow.consumed(100));
+        try {
+            flow.received(100);
+            fail("Peer spent credit it wasn't granted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void waitingReceiverStallsUntilTheConsumerCatchesUp() throws Exception {
+        final FlowControl flow = new FlowControl(WINDOW, true);
+        flow.received(WINDOW);
+        final CountDownLatch received = new CountDownLatch(1);
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread("Reader") {
+            @Override
+            public void run() {
+                try {
+                    flow.received(100);
+                    received.countDown();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        assertFalse("Reader didn't wait", received.await(100, TimeUnit.MILLISECONDS));
+        // Like a real peer, the replay waits for credit to be granted, not just consumed
+        assertEquals(0, flow.consumed(100));
+        assertFalse("Reader went on without a grant", received.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, flow.consumed(100));
+        assertEquals(300, flow.consumed(100));
+        assertTrue("Reader still waiting", received.await(5, TimeUnit.SECONDS));
+        reader.join();
+        assertNull(failure[0]);
+    }
+
+    @Test
+    public void waitingReceiverGivesUpWhenInterrupted() throws Exception {
+        final FlowControl flow = new FlowControl(WINDOW, true);
+        flow.received(WINDOW);
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread("Reader") {
+            @Override
+            public void run() {
+                try {
+                    flow.received(100);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        reader.start();
+        reader.interrupt();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertNotNull(failure[0]);
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.bluetoothchat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistorySyncTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void historiesConvergeAndCostFollowsTheDifference() throws IOException {
+        MessageHistory a = new MessageHistory(folder.newFolder());
+        MessageHistory b = new MessageHistory(folder.newFolder());
+        for (int i = 0; i < 20000; i++) {
+            long id = (i + 1) * 4096L;
+            byte[] text = ("Message " + i).getBytes();
+            a.add(id, "A", text);
+            b.add(id, "A", text);
+        }
+        for (int i = 0; i < 5; i++) {
+            a.add(random.nextLong() & Long.MAX_VALUE, "A", ("Only on A " + i).getBytes());
+            b.add(random.nextLong() & Long.MAX_VALUE, "B", ("Only on B " + i).getBytes());
+        }
+
+        long bytes = sync(a, b);
+
+        assertEquals(20010, a.size());
+        assertArrayEquals(a.ids(HistorySync.FULL_LO, HistorySync.FULL_HI), b.ids(HistorySync.FULL_LO, HistorySync.FULL_HI));
+        // A few KB for 10 differences, not the 20k messages both already have
+        assertTrue("Sync cost " + bytes + " bytes", bytes < 16 * 1024);
+    }
+
+    @Test
+    public void identicalHistoriesCostOneFingerprint() throws IOException {
+        MessageHistory a = new MessageHistory(folder.newFolder());
+        MessageHistory b = new MessageHistory(folder.newFolder());
+        for (int i = 0; i < 1000; i++) {
+            a.add(i, "A", "same".getBytes());
+            b.add(i, "A", "same".getBytes());
+        }
+
+        assertEquals(ChatProtocol.HEADER_SIZE + 8 + 8 + 1 + 4 + 8, sync(a, b));
+    }
+
+    @Test
+    public void largestMessagesFitInHistoryFrames() throws IOException {
+        MessageHistory a = new MessageHistory(folder.newFolder());
+        MessageHistory b = new MessageHistory(folder.newFolder());
+        char[] name = new char[ChatProtocol.MAX_AUTHOR_LENGTH * 2];
+        // The widest chars writeUTF has, 3 bytes each
+        Arrays.fill(name, '\u4e2d');
+        String author = new String(name);
+        for (int i = 0; i < 10; i++) {
+            a.add(100 + i, "A", ("small " + i).getBytes());
+        }
+        a.add(200, author, new byte[ChatProtocol.MAX_TEXT_SIZE]);
+        a.add(201, author, new byte[ChatProtocol.MAX_TEXT_SIZE]);
+
+        // sync() reads every frame with ChatProtocol.readHeader, which rejects oversize bodies
+        sync(a, b);
+
+        assertEquals(12, b.size());
+        assertEquals(ChatProtocol.MAX_TEXT_SIZE, b.get(201).text.length);
+    }
+
+    @Test
+    public void historyEntryTooLongToSyncIsRefused() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(1);
+        out.writeUTF("A");
+        out.writeInt(ChatProtocol.MAX_TEXT_SIZE + 1);
+        out.write(new byte[ChatProtocol.MAX_TEXT_SIZE + 1]);
+        MessageHistory history = new MessageHistory(folder.newFolder());
+
+        try {
+            new HistorySync(history).onHistory(body.toByteArray());
+            fail("Took a message no HISTORY frame could pass on");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, history.size());
+    }
+
+    // Run a sync opened by a, delivering frames between the two sides until both are quiet.
+    // Returns the bytes sent in both directions.
+    private static long sync(MessageHistory a, MessageHistory b) throws IOException {
+        HistorySync[] sides = {new HistorySync(a), new HistorySync(b)};
+        ArrayDeque<byte[]> toSide = new ArrayDeque<>();
+        ArrayDeque<Integer> toWhom = new ArrayDeque<>();
+
+        ByteArrayOutputStream opening = new ByteArrayOutputStream();
+        sides[0].start(new DataOutputStream(opening));
+        toSide.add(opening.toByteArray());
+        toWhom.add(1);
+
+        long bytes = 0;
+        int rounds = 0;
+        while (!toSide.isEmpty()) {
+            assertTrue("Sync didn't converge", ++rounds < 1000);
+            byte[] frames = toSide.removeFirst();
+            int side = toWhom.removeFirst();
+            bytes += frames.length;
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(reply);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frames));
+            int[] length = new int[1];
+            while (in.available() > 0) {
+                int type = ChatProtocol.readHeader(in, length);
+                byte[] body = new byte[length[0]];
+                in.readFully(body);
+                switch (type) {
+                    case ChatProtocol.FRAME_SYNC_RANGES:
+                        sides[side].onRanges(body, out);
+                        break;
+                    case ChatProtocol.FRAME_SYNC_WANT:
+                        sides[side].onWant(body, out);
+                        break;
+                    case ChatProtocol.FRAME_HISTORY:
+                        sides[side].onHistory(body);
+                        break;
+                    default:
+                        fail("Unexpected frame " + type);
+                }
+            }
+            if (reply.size() > 0) {
+                toSide.add(reply.toByteArray());
+                toWhom.add(1 - side);
+            }
+        }
+        return bytes;
+    }
+}
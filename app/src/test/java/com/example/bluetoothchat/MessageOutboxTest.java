@@ -0,0 +1,103 @@
+package com.example.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @Test
+    public void reloadKeepsOnlyUnacknowledgedMessages() throws IOException {
+        MessageOutbox outbox = new MessageOutbox(dir);
+        outbox.add("one".getBytes());
+        outbox.add("two".getBytes());
+        MessageOutbox.Entry three = outbox.add("three".getBytes());
+        outbox.remove(2);
+
+        List<MessageOutbox.Entry> reloaded = new MessageOutbox(dir).peekBatch(Integer.MAX_VALUE);
+        assertEquals(1, reloaded.size());
+        assertEquals(three.id, reloaded.get(0).id);
+        assertArrayEquals("three".getBytes(), reloaded.get(0).text);
+    }
+
+    @Test
+    public void reloadAfterEverythingAcknowledgedIsEmpty() throws IOException {
+        MessageOutbox outbox = new MessageOutbox(dir);
+        outbox.add("one".getBytes());
+        outbox.add("two".getBytes());
+        outbox.remove(2);
+
+        assertTrue(new MessageOutbox(dir).isEmpty());
+        assertFalse(new File(dir, "outbox.log").exists());
+    }
+
+    @Test
+    public void cutOffLastRecordIsDroppedAndLogRepaired() throws IOException {
+        MessageOutbox outbox = new MessageOutbox(dir);
+        MessageOutbox.Entry one = outbox.add("one".getBytes());
+        outbox.add("two".getBytes());
+        // The app died halfway through writing the second record
+        File log = new File(dir, "outbox.log");
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        MessageOutbox reloaded = new MessageOutbox(dir);
+        assertEquals(1, reloaded.size());
+        assertEquals(one.id, reloaded.peekBatch(Integer.MAX_VALUE).get(0).id);
+
+        // Appending after the repair must not land behind the half record
+        MessageOutbox.Entry three = reloaded.add("three".getBytes());
+        List<MessageOutbox.Entry> entries = new MessageOutbox(dir).peekBatch(Integer.MAX_VALUE);
+        assertEquals(2, entries.size());
+        assertEquals(one.id, entries.get(0).id);
+        assertEquals(three.id, entries.get(1).id);
+    }
+
+    @Test
+    public void messageLargerThanAFrameIsRefused() throws IOException {
+        MessageOutbox outbox = new MessageOutbox(dir);
+        outbox.add(new byte[ChatProtocol.MAX_TEXT_SIZE]);
+        try {
+            outbox.add(new byte[ChatProtocol.MAX_TEXT_SIZE + 1]);
+            fail("Oversize message was queued");
+        } catch (IOException expected) {
+        }
+        outbox.add("after".getBytes());
+
+        List<MessageOutbox.Entry> entries = new MessageOutbox(dir).peekBatch(Integer.MAX_VALUE);
+        assertEquals(2, entries.size());
+        assertEquals(ChatProtocol.MAX_TEXT_SIZE, entries.get(0).text.length);
+        assertTrue(ChatProtocol.textFrameSize(entries.get(0).text) - ChatProtocol.HEADER_SIZE <= ChatProtocol.MAX_BODY_SIZE);
+        assertArrayEquals("after".getBytes(), entries.get(1).text);
+    }
+
+    @Test
+    public void idsGoUpEvenWithinAMillisecond() throws IOException {
+        MessageOutbox outbox = new MessageOutbox(dir);
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < 10000; i++) {
+            long id = outbox.add(new byte[0]).id;
+            assertTrue("Id " + i + " didn't go up", id > last);
+            last = id;
+        }
+    }
+}
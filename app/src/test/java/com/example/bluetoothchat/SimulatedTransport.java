@@ -0,0 +1,362 @@
+package com.example.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An in-memory ChatTransport for tests. Transports on the same Air can reach each other by
+// address; connections are a pair of bounded pipes. Each transport counts the sockets and
+// server sockets it has open and notices when more than one of its connections is in use at
+// once, so a test can check nothing leaked.
+class SimulatedTransport implements ChatTransport {
+
+    // The devices in range of each other, by address
+    static class Air {
+        private final Map<String, SimulatedServer> listening = new HashMap<>();
+        private final List<SimulatedConnection> connections = new ArrayList<>();
+        // Bytes each direction of a new connection buffers before its writer blocks
+        volatile int pipeCapacity = 64 * 1024;
+
+        /**
+         * Break every connection on the air, as if the devices went out of range.
+         */
+        void dropLinks() {
+            List<SimulatedConnection> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(connections);
+                connections.clear();
+            }
+            for (SimulatedConnection connection : dropped) {
+                connection.breakLink();
+            }
+        }
+    }
+
+    private final Air air;
+    private final String address;
+    private final String name;
+
+    final AtomicInteger openSockets = new AtomicInteger();
+    final AtomicInteger openServers = new AtomicInteger();
+    final AtomicInteger sessions = new AtomicInteger();
+    // Times a second server was listening, or a second session was running, on this transport
+    final AtomicInteger violations = new AtomicInteger();
+
+    SimulatedTransport(Air air, String address, String name) {
+        this.air = air;
+        this.address = address;
+        this.name = name;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        SimulatedServer server = new SimulatedServer();
+        synchronized (air) {
+            SimulatedServer previous = air.listening.get(address);
+            if (previous != null && !previous.isClosed()) {
+                violations.incrementAndGet();
+            }
+            air.listening.put(address, server);
+        }
+        return server;
+    }
+
+    @Override
+    public Connection createConnection(String remoteAddress) {
+        return new SimulatedConnection(this, remoteAddress, null);
+    }
+
+    @Override
+    public void cancelDiscovery() {
+    }
+
+    @Override
+    public String getLocalName() {
+        return name;
+    }
+
+    private class SimulatedServer implements Server {
+        private final ArrayDeque<SimulatedConnection> pending = new ArrayDeque<>();
+        private boolean closed;
+
+        SimulatedServer() {
+            openServers.incrementAndGet();
+        }
+
+        SimulatedTransport owner() {
+            return SimulatedTransport.this;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void offer(SimulatedConnection connection) throws IOException {
+            if (closed) {
+                throw new IOException("Connection refused");
+            }
+            pending.addLast(connection);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            while (pending.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Server socket closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            return pending.removeFirst();
+        }
+
+        @Override
+        public void close() {
+            List<SimulatedConnection> refused;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+                refused = new ArrayList<>(pending);
+                pending.clear();
+            }
+            synchronized (air) {
+                if (air.listening.get(address) == this) {
+                    air.listening.remove(address);
+                }
+            }
+            openServers.decrementAndGet();
+            // Connections nobody accepted are dropped with the server
+            for (SimulatedConnection connection : refused) {
+                connection.close();
+            }
+        }
+    }
+
+    private static class SimulatedConnection implements Connection {
+        private final SimulatedTransport owner;
+        private final String remoteAddress;
+        private Pipe in;
+        private Pipe out;
+        private String remoteName;
+        private boolean connected;
+        private boolean closed;
+        private boolean inSession;
+
+        // An accepted end is created connected to the end that dialled it
+        SimulatedConnection(SimulatedTransport owner, String remoteAddress, SimulatedConnection peer) {
+            this.owner = owner;
+            this.remoteAddress = remoteAddress;
+            owner.openSockets.incrementAndGet();
+            if (peer != null) {
+                in = peer.out;
+                out = peer.in;
+                remoteName = peer.owner.name;
+                connected = true;
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            SimulatedServer server;
+            synchronized (owner.air) {
+                server = owner.air.listening.get(remoteAddress);
+            }
+            if (server == null) {
+                throw new IOException("Connection refused");
+            }
+            SimulatedConnection accepted;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                if (connected) {
+                    throw new IOException("Already connected");
+                }
+                in = new Pipe(owner.air.pipeCapacity);
+                out = new Pipe(owner.air.pipeCapacity);
+                remoteName = server.owner().name;
+                accepted = new SimulatedConnection(server.owner(), owner.address, this);
+                connected = true;
+                synchronized (owner.air) {
+                    owner.air.connections.add(this);
+                }
+            }
+            try {
+                server.offer(accepted);
+            } catch (IOException e) {
+                accepted.close();
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            startSession();
+            return in.input();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            startSession();
+            return out.output();
+        }
+
+        private void startSession() throws IOException {
+            if (!connected || closed) {
+                throw new IOException("Not connected");
+            }
+            if (!inSession) {
+                inSession = true;
+                if (owner.sessions.incrementAndGet() > 1) {
+                    owner.violations.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteName;
+        }
+
+        void breakLink() {
+            Pipe a;
+            Pipe b;
+            synchronized (this) {
+                a = in;
+                b = out;
+            }
+            if (a != null) {
+                a.close();
+            }
+            if (b != null) {
+                b.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (inSession) {
+                    owner.sessions.decrementAndGet();
+                }
+            }
+            synchronized (owner.air) {
+                owner.air.connections.remove(this);
+            }
+            owner.openSockets.decrementAndGet();
+            breakLink();
+        }
+    }
+
+    // One direction of a connection. Like a socket's buffers it holds at most capacity bytes and a
+    // writer blocks while it is full, so two ends that both write without reading deadlock here
+    // just as they would over RFCOMM. Once closed from either end, reads and writes fail.
+    private static class Pipe {
+        private final byte[] buffer;
+        private int start;
+        private int size;
+        private boolean closed;
+
+        Pipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (size == buffer.length && !closed) {
+                    await();
+                }
+                if (closed) {
+                    throw new IOException("Broken pipe");
+                }
+                int end = (start + size) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - size, buffer.length - end));
+                System.arraycopy(b, off, buffer, end, n);
+                size += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            while (size == 0 && !closed) {
+                await();
+            }
+            if (closed) {
+                throw new IOException("Connection reset");
+            }
+            int n = Math.min(len, Math.min(size, buffer.length - start));
+            System.arraycopy(buffer, start, b, off, n);
+            start = (start + n) % buffer.length;
+            size -= n;
+            notifyAll();
+            return n;
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    return Pipe.this.read(b, off, len);
+                }
+            };
+        }
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.bluetoothchat;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Captures a session the way ConnectedThread does and plays it back through a FrameReceiver.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class WireReplayTest {
+
+    // About twice the receive window, so the replay has to wait for the UI at least once
+    private static final int MESSAGES = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HandlerThread uiThread;
+
+    // Stands in for the UI Activity: keeps the texts and attachments it is handed
+    private static class TextCollector extends Handler {
+        final List<String> texts = new ArrayList<>();
+        final List<File> attachments = new ArrayList<>();
+        final CountDownLatch done;
+
+        TextCollector(Looper looper, int expected) {
+            super(looper);
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == BluetoothChat.MESSAGE_READ) {
+                texts.add(new String((byte[]) msg.obj, 0, msg.arg1));
+                done.countDown();
+            } else if (msg.what == BluetoothChat.MESSAGE_ATTACHMENT) {
+                attachments.add((File) msg.obj);
+                done.countDown();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        uiThread = new HandlerThread("UI");
+        uiThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        uiThread.quit();
+    }
+
+    @Test
+    public void replayDeliversEveryCapturedMessageInOrder() throws Exception {
+        byte[] frames = textFrames(MESSAGES);
+        File file = capture(frames, frames.length);
+
+        WireReplay replay = new WireReplay(file, false);
+        TextCollector ui = new TextCollector(uiThread.getLooper(), MESSAGES);
+        WireReplay.Result result = replay.run(receiver(replay, ui));
+
+        assertTrue("UI didn't get every message", ui.done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals("Message " + i, ui.texts.get(i));
+        }
+        // Only inbound bytes are replayed, not what this side wrote
+        assertEquals(frames.length, result.inboundBytes);
+        assertTrue(result.nanos > 0);
+        // The receiver granted credit back as the UI worked through the messages
+        assertTrue(result.replyBytes > 0);
+    }
+
+    @Test
+    public void captureCutShortInAFrameFails() throws Exception {
+        byte[] frames = textFrames(10);
+        File file = capture(frames, frames.length - 3);
+
+        WireReplay replay = new WireReplay(file, false);
+        TextCollector ui = new TextCollector(uiThread.getLooper(), 9);
+        try {
+            replay.run(receiver(replay, ui));
+            fail("Partial frame was taken as the end of the capture");
+        } catch (EOFException expected) {
+        }
+        // Everything before the cut still went through
+        assertTrue(ui.done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void creditGrantsInTheCaptureAreIgnored() throws Exception {
+        // The recorded peer gave credit back for what this side sent during the session, which
+        // the replay never spends
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < 100; i++) {
+            ChatProtocol.writeTextFrame(out, i + 1, ("Message " + i).getBytes());
+            ChatProtocol.writeCreditFrame(out, ChatProtocol.RECEIVE_WINDOW);
+        }
+        File file = capture(bytes.toByteArray(), bytes.size());
+
+        WireReplay replay = new WireReplay(file, false);
+        TextCollector ui = new TextCollector(uiThread.getLooper(), 100);
+        replay.run(receiver(replay, ui));
+
+        assertTrue("UI didn't get every message", ui.done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serviceReplaysTheSameCaptureTheSameWay() throws Exception {
+        // An attachment the first replay has to ask for its chunk of. A second replay that kept
+        // the first one's chunk store would have it already and send no request.
+        byte[] data = ContentChunkerTest.randomBytes(1000, 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        AttachmentTransfer sender = new AttachmentTransfer(
+                new ChunkStore(folder.newFolder(), 1024 * 1024), folder.newFolder());
+        sender.offer(7, "note.txt", new ByteArrayInputStream(data), out);
+        byte[] hash = ContentChunker.hash(data);
+        out.writeByte(ChatProtocol.FRAME_CHUNK);
+        out.writeInt(hash.length + data.length);
+        out.write(hash);
+        out.write(data);
+        File file = capture(bytes.toByteArray(), bytes.size());
+        final File filesDir = folder.newFolder();
+        final File cacheDir = folder.newFolder();
+        Context context = new ContextWrapper(RuntimeEnvironment.getApplication()) {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+        TextCollector ui = new TextCollector(uiThread.getLooper(), 2);
+        BluetoothChatService service = new BluetoothChatService(context, ui,
+                new SimulatedTransport(new SimulatedTransport.Air(), "00:00:00:00:00:0A", "A"));
+
+        WireReplay.Result first = service.replay(file, false);
+        WireReplay.Result second = service.replay(file, false);
+
+        assertTrue("UI didn't get the attachment twice", ui.done.await(10, TimeUnit.SECONDS));
+        assertEquals(first.inboundBytes, second.inboundBytes);
+        // Both asked for the chunk. Credit the UI gives back may land after a replay returns, so
+        // the totals can differ by a CREDIT frame.
+        int request = ChatProtocol.HEADER_SIZE + 8 + ContentChunker.HASH_SIZE;
+        assertTrue("First replay sent " + first.replyBytes + " bytes", first.replyBytes >= request);
+        assertTrue("Second replay sent " + second.replyBytes + " bytes", second.replyBytes >= request);
+        assertEquals(ui.attachments.get(0).getName(), ui.attachments.get(1).getName());
+        assertArrayEquals(data, Files.readAllBytes(ui.attachments.get(1).toPath()));
+    }
+
+    @Test
+    public void textTooLongToSyncIsRefused() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChatProtocol.writeTextFrame(new DataOutputStream(bytes), 1, new byte[ChatProtocol.MAX_TEXT_SIZE + 1]);
+        File file = capture(bytes.toByteArray(), bytes.size());
+
+        WireReplay replay = new WireReplay(file, false);
+        try {
+            replay.run(receiver(replay, new TextCollector(uiThread.getLooper(), 0)));
+            fail("Took a message no HISTORY frame could pass on");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        File file = folder.newFile();
+        WireReplay replay = new WireReplay(file, false);
+        try {
+            replay.run(receiver(replay, new TextCollector(uiThread.getLooper(), 0)));
+            fail("Replayed an empty file");
+        } catch (IOException expected) {
+        }
+    }
+
+    private FrameReceiver receiver(WireReplay replay, Handler ui) throws IOException {
+        File dir = folder.newFolder();
+        AttachmentTransfer attachments = new AttachmentTransfer(
+                new ChunkStore(new File(dir, "chunks"), 1024 * 1024), new File(dir, "attachments"));
+        return new FrameReceiver(new MessageHistory(dir), attachments, ui, "Peer",
+                replay.discardReplies(), replay.flowControl());
+    }
+
+    private static byte[] textFrames(int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < count; i++) {
+            ChatProtocol.writeTextFrame(out, i + 1, ("Message " + i).getBytes());
+        }
+        return bytes.toByteArray();
+    }
+
+    // Record the first length bytes of inbound as a live connection would, in the uneven pieces
+    // a socket hands out, with some outbound traffic mixed in
+    private File capture(byte[] inbound, int length) throws IOException {
+        File file = folder.newFile();
+        try (WireCapture capture = new WireCapture(file)) {
+            InputStream in = capture.wrap(new ByteArrayInputStream(Arrays.copyOf(inbound, length)));
+            OutputStream out = capture.wrap(new ByteArrayOutputStream());
+            byte[] buffer = new byte[1000];
+            int n;
+            int piece = 1;
+            while ((n = in.read(buffer, 0, piece)) > 0) {
+                out.write(buffer, 0, Math.min(n, 7));
+                piece = piece * 3 % buffer.length + 1;
+            }
+        }
+        return file;
+    }
+}